@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.RectF;
+
+/**
+ * The image and viewport sizes for benchmarks.
+ */
+final class BenchmarkSizes {
+
+    // 10 MP, 100 MP, 1 GP, 2 GP
+    static final String IMAGE_10MP = "3872x2592";
+    static final String IMAGE_100MP = "12000x8000";
+    static final String IMAGE_1GP = "40000x25000";
+    static final String IMAGE_2GP = "50000x40000";
+
+    static final String VIEWPORT_HD = "720x1280";
+    static final String VIEWPORT_QHD = "1440x2560";
+
+    // The size of tiles in sample 1, like TiledBitmapSource on a 720p window
+    static final int TILE_SIZE = 512;
+
+    // The count of positions in a pan
+    static final int PAN_STEPS = 64;
+
+    private BenchmarkSizes() {}
+
+    // Parse "WIDTHxHEIGHT"
+    static int[] parse(String size) {
+        final int x = size.indexOf('x');
+        return new int[] {
+                Integer.parseInt(size.substring(0, x)),
+                Integer.parseInt(size.substring(x + 1))
+        };
+    }
+
+    /**
+     * Get the windows on the image in a diagonal pan at the scale,
+     * which is window pixels per image pixel.
+     */
+    static RectF[] pan(int imageWidth, int imageHeight,
+            int windowWidth, int windowHeight, float scale) {
+        final float width = Math.min(imageWidth, windowWidth / scale);
+        final float height = Math.min(imageHeight, windowHeight / scale);
+        final RectF[] windows = new RectF[PAN_STEPS];
+        for (int i = 0; i < PAN_STEPS; i++) {
+            final float amount = (float) i / (PAN_STEPS - 1);
+            final float left = ImageMath.lerp(0.0f, imageWidth - width, amount);
+            final float top = ImageMath.lerp(0.0f, imageHeight - height, amount);
+            windows[i] = new RectF(left, top, left + width, top + height);
+        }
+        return windows;
+    }
+}
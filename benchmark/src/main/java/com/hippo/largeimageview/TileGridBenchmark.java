@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding and trimming the tiles of a frame in a 1:1 pan,
+ * which has the most tiles. The loops are the ones
+ * {@code TiledBitmapSource} runs, from {@link TileGrid}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileGridBenchmark {
+
+    // Tiles kept in cache, in windows
+    private static final int CACHE_WINDOWS = 4;
+
+    private static class Tile {
+        public final int index;
+        public final Rect rect;
+
+        public Tile(int index, Rect rect) {
+            this.index = index;
+            this.rect = rect;
+        }
+    }
+
+    @Param({BenchmarkSizes.IMAGE_10MP, BenchmarkSizes.IMAGE_100MP,
+            BenchmarkSizes.IMAGE_1GP, BenchmarkSizes.IMAGE_2GP})
+    public String imageSize;
+
+    @Param({BenchmarkSizes.VIEWPORT_HD, BenchmarkSizes.VIEWPORT_QHD})
+    public String viewportSize;
+
+    private RectF[] mWindows;
+    private int mIndex;
+
+    private TileGrid<Tile> mGrid;
+    // All tiles in a list, the way to find tiles before TileGrid.
+    // TileGrid takes tiles from it instead of creating them.
+    private List<Tile> mTileList;
+    // The tile cache, least recently used first
+    private LinkedHashMap<Integer, Tile> mCache;
+    private int mMaxCacheSize;
+
+    private final Rect mRange = new Rect();
+    private final Rect mWindow = new Rect();
+    private final List<Tile> mRangeList = new ArrayList<>();
+
+    // Keep the tiles in window, like TiledBitmapSource.trimTileCache()
+    private final TileGrid.Evictor<Tile> mEvictor = new TileGrid.Evictor<Tile>() {
+        @Override
+        public int evict(Tile tile) {
+            final TileGrid<Tile> grid = mGrid;
+            if (mRange.contains(grid.getColumn(tile.index), grid.getRow(tile.index))) {
+                return -1;
+            }
+            grid.remove(tile.index);
+            return 1;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        final int[] image = BenchmarkSizes.parse(imageSize);
+        final int[] viewport = BenchmarkSizes.parse(viewportSize);
+        final int step = BenchmarkSizes.TILE_SIZE;
+        mWindows = BenchmarkSizes.pan(image[0], image[1], viewport[0], viewport[1], 1.0f);
+
+        mGrid = new TileGrid<>(image[0], image[1], step, step, new TileGrid.Factory<Tile>() {
+            @Override
+            public Tile create(TileGrid<Tile> grid, int index) {
+                return mTileList.get(index);
+            }
+        });
+        final int count = mGrid.getColumns() * mGrid.getRows();
+        mTileList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Rect rect = new Rect();
+            mGrid.getRect(i, rect);
+            mTileList.add(new Tile(i, rect));
+        }
+
+        mCache = new LinkedHashMap<>(0, 0.75f, true);
+        mMaxCacheSize = CACHE_WINDOWS * ImageMath.ceilDiv(viewport[0], step)
+                * ImageMath.ceilDiv(viewport[1], step);
+    }
+
+    // Start every iteration with empty grid and cache, or they grow across iterations
+    @Setup(Level.Iteration)
+    public void reset() {
+        mGrid.clear();
+        mCache.clear();
+        mIndex = 0;
+    }
+
+    private RectF nextWindow() {
+        final RectF window = mWindows[mIndex];
+        mIndex = (mIndex + 1) % mWindows.length;
+        return window;
+    }
+
+    /**
+     * Find visible tiles by division, what {@code drawMapTiles} does.
+     */
+    @Benchmark
+    public int findTilesInGrid() {
+        final TileGrid<Tile> grid = mGrid;
+        final Rect range = mRange;
+        if (!grid.getRange(nextWindow(), range)) {
+            return 0;
+        }
+        final List<Tile> list = mRangeList;
+        grid.obtainRange(range, list);
+        final int found = list.size();
+        list.clear();
+        return found;
+    }
+
+    /**
+     * Find visible tiles by testing every tile, the baseline.
+     */
+    @Benchmark
+    public int findTilesInList() {
+        final RectF window = nextWindow();
+        mWindow.set((int) window.left, (int) window.top,
+                (int) Math.ceil(window.right), (int) Math.ceil(window.bottom));
+        int found = 0;
+        for (int i = 0, n = mTileList.size(); i < n; i++) {
+            if (Rect.intersects(mTileList.get(i).rect, mWindow)) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Touch visible tiles in the cache and evict the least recently used
+     * invisible tiles, what {@code trimTileCache} does after every frame.
+     */
+    @Benchmark
+    public int trimTileCache() {
+        final TileGrid<Tile> grid = mGrid;
+        final Rect range = mRange;
+        final LinkedHashMap<Integer, Tile> cache = mCache;
+        if (!grid.getRange(nextWindow(), range)) {
+            return 0;
+        }
+        final List<Tile> list = mRangeList;
+        grid.obtainRange(range, list);
+        for (int i = 0, n = list.size(); i < n; i++) {
+            final Tile tile = list.get(i);
+            if (cache.get(tile.index) == null) {
+                cache.put(tile.index, tile);
+            }
+        }
+        list.clear();
+
+        final int size = cache.size();
+        return size - TileGrid.trim(cache, size, mMaxCacheSize, mEvictor);
+    }
+}
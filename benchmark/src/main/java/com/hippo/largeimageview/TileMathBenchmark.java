@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sample and rect mapping done for every tile in every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileMathBenchmark {
+
+    @Param({BenchmarkSizes.IMAGE_10MP, BenchmarkSizes.IMAGE_100MP,
+            BenchmarkSizes.IMAGE_1GP, BenchmarkSizes.IMAGE_2GP})
+    public String imageSize;
+
+    @Param({BenchmarkSizes.VIEWPORT_HD, BenchmarkSizes.VIEWPORT_QHD})
+    public String viewportSize;
+
+    // Windows in image and the window itself
+    private RectF[] mSrcs;
+    private RectF mDst;
+    private final RectF mTile = new RectF();
+    private final RectF mTemp = new RectF();
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        final int[] image = BenchmarkSizes.parse(imageSize);
+        final int[] viewport = BenchmarkSizes.parse(viewportSize);
+        final float fitScale = Math.min((float) viewport[0] / image[0],
+                (float) viewport[1] / image[1]);
+        mSrcs = new RectF[BenchmarkSizes.PAN_STEPS];
+        for (int i = 0; i < mSrcs.length; i++) {
+            // Zoom in from fit to 1:1 at the center
+            final float scale = ImageMath.lerp(fitScale, 1.0f, (float) i / (mSrcs.length - 1));
+            final float width = Math.min(image[0], viewport[0] / scale);
+            final float height = Math.min(image[1], viewport[1] / scale);
+            final float left = (image[0] - width) / 2;
+            final float top = (image[1] - height) / 2;
+            mSrcs[i] = new RectF(left, top, left + width, top + height);
+        }
+        mDst = new RectF(0, 0, viewport[0], viewport[1]);
+    }
+
+    private RectF nextSrc() {
+        final RectF src = mSrcs[mIndex];
+        mIndex = (mIndex + 1) % mSrcs.length;
+        return src;
+    }
+
+    @Benchmark
+    public int calculateSample() {
+        final RectF src = nextSrc();
+        return ImageMath.calculateSample((int) (src.width() / mDst.width()),
+                (int) (src.height() / mDst.height()));
+    }
+
+    @Benchmark
+    public int prevPow2() {
+        return ImageMath.prevPow2((int) nextSrc().width());
+    }
+
+    @Benchmark
+    public void mapRect(Blackhole bh) {
+        final RectF src = nextSrc();
+        final int step = BenchmarkSizes.TILE_SIZE;
+        mTile.set(src.left, src.top, src.left + step, src.top + step);
+        ImageMath.mapRect(src, mDst, mTile, mTemp);
+        ImageMath.mapRect(mTile, 2);
+        bh.consume(mTemp);
+        bh.consume(mTile);
+    }
+}
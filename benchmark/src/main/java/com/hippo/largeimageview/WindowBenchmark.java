@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The window math of {@link LargeImageView}, done for every touch event
+ * and every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowBenchmark {
+
+    @Param({BenchmarkSizes.IMAGE_10MP, BenchmarkSizes.IMAGE_100MP,
+            BenchmarkSizes.IMAGE_1GP, BenchmarkSizes.IMAGE_2GP})
+    public String imageSize;
+
+    @Param({BenchmarkSizes.VIEWPORT_HD, BenchmarkSizes.VIEWPORT_QHD})
+    public String viewportSize;
+
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mWindowWidth;
+    private int mWindowHeight;
+
+    // The area in window for whole image, at 1:1
+    private final RectF mDst = new RectF();
+    private final RectF mSrcActual = new RectF();
+    private final RectF mDstActual = new RectF();
+    private final float[] mRemain = new float[2];
+    private float mDx = 16.0f;
+    private float mDy = 9.0f;
+
+    @Setup
+    public void setup() {
+        final int[] image = BenchmarkSizes.parse(imageSize);
+        final int[] viewport = BenchmarkSizes.parse(viewportSize);
+        mImageWidth = image[0];
+        mImageHeight = image[1];
+        mWindowWidth = viewport[0];
+        mWindowHeight = viewport[1];
+        mDst.set(0, 0, mImageWidth, mImageHeight);
+    }
+
+    // Scroll the image, turn back at edges
+    private void scroll() {
+        final float[] remain = mRemain;
+        ImageMath.translate(mDst, mDx, mDy, mWindowWidth, mWindowHeight, remain);
+        if (remain[0] != 0) {
+            mDx = -mDx;
+        }
+        if (remain[1] != 0) {
+            mDy = -mDy;
+        }
+    }
+
+    @Benchmark
+    public void translate(Blackhole bh) {
+        scroll();
+        bh.consume(mDst);
+    }
+
+    @Benchmark
+    public void applyRectInWindow(Blackhole bh) {
+        scroll();
+        ImageMath.getRectInWindow(mDst, mWindowWidth, mWindowHeight,
+                mImageWidth, mImageHeight, mSrcActual, mDstActual);
+        bh.consume(mSrcActual);
+        bh.consume(mDstActual);
+    }
+}
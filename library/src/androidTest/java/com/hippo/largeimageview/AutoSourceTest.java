@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class AutoSourceTest {
+
+    private static final int IMAGE_SIZE = 1024;
+    // The image is larger than the bitmap limit, so it is tiled
+    private static final int MAX_BITMAP_SIZE = 512;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static class TestSource extends AutoSource {
+
+        private final CountDownLatch mInitLatch = new CountDownLatch(1);
+        private boolean mBaseSet;
+
+        public TestSource(File file) {
+            super(file);
+        }
+
+        @Override
+        protected void setImageSource(@NonNull ImageSource base) {
+            super.setImageSource(base);
+            mBaseSet = true;
+            mInitLatch.countDown();
+        }
+    }
+
+    private static class Counter implements ImageSource.Callback {
+
+        private final TestSource mSource;
+        private int mReadyCount;
+        private int mReadyBeforeBaseCount;
+        private int mFailedCount;
+
+        public Counter(TestSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public void onImageReady(@NonNull ImageSource who) {
+            ++mReadyCount;
+            if (!mSource.mBaseSet) {
+                ++mReadyBeforeBaseCount;
+            }
+        }
+
+        @Override
+        public void onImageFailed(@NonNull ImageSource who) {
+            ++mFailedCount;
+            mSource.mInitLatch.countDown();
+        }
+
+        @Override
+        public void invalidateImage(@NonNull ImageSource who) {}
+
+        @Override
+        public void scheduleImage(@NonNull ImageSource who, @NonNull Runnable what, long when) {}
+
+        @Override
+        public void unscheduleImage(@NonNull ImageSource who, @NonNull Runnable what) {}
+    }
+
+    private static File createImage(File dir) throws IOException {
+        final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, IMAGE_SIZE, IMAGE_SIZE,
+                Color.RED, Color.BLUE, Shader.TileMode.CLAMP));
+        new Canvas(bitmap).drawPaint(paint);
+
+        final File file = new File(dir, "auto_source_test.png");
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        } finally {
+            os.close();
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadyOnceWithPreview() throws Exception {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final File file = createImage(instrumentation.getTargetContext().getCacheDir());
+        final TestSource source = new TestSource(file);
+        final Counter counter = new Counter(source);
+        source.setSampledPreview(true);
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                source.setCallback(counter);
+                source.setWindowSize(IMAGE_SIZE, IMAGE_SIZE);
+                source.setMaxBitmapSize(MAX_BITMAP_SIZE);
+                source.init();
+            }
+        });
+
+        assertTrue(source.mInitLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        instrumentation.waitForIdleSync();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                source.recycle();
+            }
+        });
+        file.delete();
+
+        assertEquals(0, counter.mFailedCount);
+        // Ready with the preview, not again with the tiles
+        assertEquals(1, counter.mReadyBeforeBaseCount);
+        assertEquals(1, counter.mReadyCount);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.app.Instrumentation;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link TiledBitmapSource} with a {@link SyntheticRegionDecoder}
+ * through scripted viewport sequences, to compare decode scheduling
+ * changes without real images. Reports are logged with the tag
+ * {@code DecodeScheduleBenchmark}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecodeScheduleBenchmark {
+
+    private static final String LOG_TAG = DecodeScheduleBenchmark.class.getSimpleName();
+
+    private static final int IMAGE_WIDTH = 12000;
+    private static final int IMAGE_HEIGHT = 8000;
+    private static final int WINDOW_WIDTH = 1080;
+    private static final int WINDOW_HEIGHT = 1920;
+    // Tiles are 512 x 512
+    private static final int MAX_BITMAP_SIZE = 2048;
+    private static final int BITMAP_POOL_SIZE = 32 * 1024 * 1024;
+
+    private static final long FRAME_MILLIS = 16;
+    private static final long SETTLE_TIMEOUT_MILLIS = 10000;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "DecodeScheduleBenchmark");
+        }
+    };
+
+    // Move the window to src in frames
+    private static class Step {
+        public RectF src;
+        public int frames;
+        public boolean touching;
+        public boolean animating;
+    }
+
+    private static class Script {
+
+        public final String name;
+        public final RectF start;
+        public final List<Step> steps = new ArrayList<>();
+
+        public Script(String name, RectF start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        // Scroll with finger
+        public Script scroll(RectF src, int frames) {
+            return add(src, frames, true, false);
+        }
+
+        // Fling or scale by animator, target is known
+        public Script animate(RectF src, int frames) {
+            return add(src, frames, false, true);
+        }
+
+        private Script add(RectF src, int frames, boolean touching, boolean animating) {
+            final Step step = new Step();
+            step.src = src;
+            step.frames = frames;
+            step.touching = touching;
+            step.animating = animating;
+            steps.add(step);
+            return this;
+        }
+    }
+
+    private static class Report {
+        public String name;
+        public int threads;
+        // Regions the decoder decoded, full tiles included
+        public int decodeCount;
+        public int wastedCount;
+        public int cancelledCount;
+        public int maxRunningCount;
+        public long peakResidentBytes;
+        // From the last scripted frame until no visible tile is missing, -1 for timeout
+        public long settleMillis;
+        public int settleFrames;
+
+        @Override
+        public String toString() {
+            return name + " threads=" + threads
+                    + " decodes=" + decodeCount
+                    + " wasted=" + wastedCount
+                    + " cancelled=" + cancelledCount
+                    + " maxRunning=" + maxRunningCount
+                    + " peakResidentBytes=" + peakResidentBytes
+                    + " settleMillis=" + settleMillis
+                    + " settleFrames=" + settleFrames;
+        }
+    }
+
+    // Draw a frame in UI thread
+    private static class Frame implements Runnable {
+
+        private final TiledBitmapSource mSource;
+        private final Canvas mCanvas;
+        private final RectF mDst;
+        public final RectF src = new RectF();
+        public TileMetrics metrics;
+        public long peakResidentBytes;
+
+        public Frame(TiledBitmapSource source, Canvas canvas, RectF dst) {
+            mSource = source;
+            mCanvas = canvas;
+            mDst = dst;
+        }
+
+        @Override
+        public void run() {
+            mSource.draw(mCanvas, src, mDst);
+            metrics = mSource.getTileMetrics();
+            peakResidentBytes = Math.max(peakResidentBytes, metrics.getResidentBytes());
+        }
+    }
+
+    // The area in image shown in window at the scale, around the center
+    private static RectF window(float centerX, float centerY, float scale) {
+        final float width = WINDOW_WIDTH / scale;
+        final float height = WINDOW_HEIGHT / scale;
+        final float left = ImageMath.clamp(centerX - width / 2, 0, IMAGE_WIDTH - width);
+        final float top = ImageMath.clamp(centerY - height / 2, 0, IMAGE_HEIGHT - height);
+        return new RectF(left, top, left + width, top + height);
+    }
+
+    private static void sleepFrame() {
+        SystemClock.sleep(FRAME_MILLIS);
+    }
+
+    private static Report run(Script script, int threads) {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final SyntheticRegionDecoder decoder = new SyntheticRegionDecoder(
+                IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888,
+                SyntheticRegionDecoder.CostModel.DEFAULT);
+        final TiledBitmapSource source = new TiledBitmapSource(decoder,
+                DecodeExecutor.newExecutor(threads, THREAD_FACTORY));
+        // Don't share bitmaps or tiles between runs
+        source.setBitmapPool(new LruBitmapPool(BITMAP_POOL_SIZE));
+        source.setDiskTileCache(null);
+        final RectF dst = new RectF(0, 0, WINDOW_WIDTH, WINDOW_HEIGHT);
+        final Canvas canvas = new Canvas(
+                Bitmap.createBitmap(WINDOW_WIDTH, WINDOW_HEIGHT, Bitmap.Config.RGB_565));
+        final Frame frame = new Frame(source, canvas, dst);
+        frame.src.set(script.start);
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                source.setWindowSize(WINDOW_WIDTH, WINDOW_HEIGHT);
+                source.setMaxBitmapSize(MAX_BITMAP_SIZE);
+            }
+        });
+
+        final RectF from = new RectF();
+        for (final Step step : script.steps) {
+            from.set(frame.src);
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    if (step.touching) {
+                        source.onTouchStart();
+                    }
+                    if (step.animating) {
+                        source.onAnimatorStart();
+                        source.onAnimatorTarget(step.src, dst);
+                    }
+                }
+            });
+
+            for (int i = 1; i <= step.frames; i++) {
+                final float amount = (float) i / step.frames;
+                final RectF src = frame.src;
+                final float lastCenterX = src.centerX();
+                final float lastCenterY = src.centerY();
+                src.set(ImageMath.lerp(from.left, step.src.left, amount),
+                        ImageMath.lerp(from.top, step.src.top, amount),
+                        ImageMath.lerp(from.right, step.src.right, amount),
+                        ImageMath.lerp(from.bottom, step.src.bottom, amount));
+                // Pixels per second in window
+                final float scale = WINDOW_WIDTH / src.width();
+                final float velocityX = (src.centerX() - lastCenterX) * scale * 1000 / FRAME_MILLIS;
+                final float velocityY = (src.centerY() - lastCenterY) * scale * 1000 / FRAME_MILLIS;
+                instrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        source.onScrollVelocity(velocityX, velocityY);
+                    }
+                });
+                instrumentation.runOnMainSync(frame);
+                sleepFrame();
+            }
+
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    source.onScrollVelocity(0.0f, 0.0f);
+                    if (step.touching) {
+                        source.onTouchEnd();
+                    }
+                    if (step.animating) {
+                        source.onAnimatorEnd();
+                    }
+                }
+            });
+        }
+
+        // Wait until all visible tiles are at the target sample
+        final long start = SystemClock.uptimeMillis();
+        long settleMillis = -1;
+        int settleFrames = 0;
+        while (SystemClock.uptimeMillis() - start < SETTLE_TIMEOUT_MILLIS) {
+            instrumentation.runOnMainSync(frame);
+            if (frame.metrics.getMissingTileCount() == 0) {
+                settleMillis = SystemClock.uptimeMillis() - start;
+                break;
+            }
+            ++settleFrames;
+            sleepFrame();
+        }
+
+        final Report report = new Report();
+        report.name = script.name;
+        report.threads = threads;
+        report.decodeCount = decoder.getDecodeCount();
+        report.wastedCount = frame.metrics.getWastedCount();
+        report.cancelledCount = frame.metrics.getCancelledCount();
+        report.maxRunningCount = decoder.getMaxRunningCount();
+        report.peakResidentBytes = frame.peakResidentBytes;
+        report.settleMillis = settleMillis;
+        report.settleFrames = settleFrames;
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                source.recycle();
+            }
+        });
+        canvas.setBitmap(null);
+
+        return report;
+    }
+
+    // Run the script with one thread and all cores
+    private static void benchmark(Script script) {
+        for (int threads : new int[] {1, CPU_COUNT}) {
+            final Report report = run(script, threads);
+            Log.i(LOG_TAG, report.toString());
+            assertTrue("Not settled: " + report, report.settleMillis >= 0);
+        }
+    }
+
+    @Test
+    public void scrollAtOneToOne() {
+        benchmark(new Script("scroll", window(0, 0, 1.0f))
+                .scroll(window(IMAGE_WIDTH / 2, 0, 1.0f), 90));
+    }
+
+    @Test
+    public void zoomIn() {
+        benchmark(new Script("zoom", window(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, 0.25f))
+                .animate(window(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2, 1.0f), 20));
+    }
+
+    @Test
+    public void flingAtHalf() {
+        benchmark(new Script("fling", window(0, IMAGE_HEIGHT / 2, 0.5f))
+                .animate(window(IMAGE_WIDTH, IMAGE_HEIGHT / 2, 0.5f), 40));
+    }
+
+    @Test
+    public void scrollThenZoomOut() {
+        benchmark(new Script("scrollThenZoomOut", window(0, 0, 1.0f))
+                .scroll(window(IMAGE_WIDTH / 4, IMAGE_HEIGHT / 4, 1.0f), 60)
+                .animate(window(IMAGE_WIDTH / 4, IMAGE_HEIGHT / 4, 0.25f), 20));
+    }
+}
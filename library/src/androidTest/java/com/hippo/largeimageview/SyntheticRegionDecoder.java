@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link RegionDecoder} without image data. It takes the time
+ * of the {@link CostModel} to decode a region, then returns a bitmap
+ * filled with a color from the region, so results are reproducible.
+ * <p>
+ * It waits instead of burning CPU, the latency doesn't depend on
+ * other threads. It's safe to be called in multiple threads.
+ */
+public class SyntheticRegionDecoder extends RegionDecoder {
+
+    /**
+     * The time to decode a region:
+     * {@code fixed + source pixels * sourceCost + output pixels * outputCost}.
+     * Decoders read the whole region whatever the sample,
+     * but only write the sampled pixels.
+     */
+    public static final class CostModel {
+
+        /**
+         * Roughly a mid-range phone decoding baseline JPEG.
+         */
+        public static final CostModel DEFAULT = new CostModel(1000000, 5, 20);
+
+        private final long mFixedNanos;
+        private final long mSourceNanosPerPixel;
+        private final long mOutputNanosPerPixel;
+
+        public CostModel(long fixedNanos, long sourceNanosPerPixel, long outputNanosPerPixel) {
+            mFixedNanos = fixedNanos;
+            mSourceNanosPerPixel = sourceNanosPerPixel;
+            mOutputNanosPerPixel = outputNanosPerPixel;
+        }
+
+        public long getLatencyNanos(Rect rect, int sample) {
+            final long sourcePixels = (long) rect.width() * rect.height();
+            final long outputPixels = sourcePixels / ((long) sample * sample);
+            return mFixedNanos + sourcePixels * mSourceNanosPerPixel
+                    + outputPixels * mOutputNanosPerPixel;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final CostModel mCostModel;
+    private final AtomicInteger mDecodeCount = new AtomicInteger();
+    private final AtomicInteger mRunningCount = new AtomicInteger();
+    private final AtomicInteger mMaxRunningCount = new AtomicInteger();
+    private volatile boolean mRecycled;
+
+    public SyntheticRegionDecoder(int width, int height,
+            @NonNull Bitmap.Config config, @NonNull CostModel costModel) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mCostModel = costModel;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @NonNull
+    @Override
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    // Decode as many regions as a RegionDecoderPool
+    @Override
+    public int getMaxConcurrency() {
+        return RegionDecoderPool.DEFAULT_MAX_SIZE;
+    }
+
+    /**
+     * Return the count of regions decoded, or being decoded.
+     */
+    public int getDecodeCount() {
+        return mDecodeCount.get();
+    }
+
+    /**
+     * Return the max count of regions decoded at the same time.
+     */
+    public int getMaxRunningCount() {
+        return mMaxRunningCount.get();
+    }
+
+    @Override
+    protected Bitmap decodeRegionInternal(Rect rect, int sample) {
+        if (mRecycled) {
+            return null;
+        }
+
+        mDecodeCount.incrementAndGet();
+        final int running = mRunningCount.incrementAndGet();
+        int max;
+        while (running > (max = mMaxRunningCount.get())
+                && !mMaxRunningCount.compareAndSet(max, running)) {
+            // Retry
+        }
+
+        try {
+            // Wait for the cost
+            final long deadline = System.nanoTime() + mCostModel.getLatencyNanos(rect, sample);
+            long remain;
+            while ((remain = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remain);
+            }
+
+            final int width = Math.max(1, rect.width() / sample);
+            final int height = Math.max(1, rect.height() / sample);
+            final BitmapPool pool = getBitmapPool();
+            Bitmap bitmap = pool != null ? pool.get(width, height, mConfig) : null;
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, mConfig);
+            }
+            bitmap.eraseColor(0xff000000 | (rect.hashCode() * 31 + sample));
+            return bitmap;
+        } finally {
+            mRunningCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void recycle() {
+        mRecycled = true;
+    }
+}
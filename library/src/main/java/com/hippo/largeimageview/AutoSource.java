@@ -23,32 +23,156 @@ package com.hippo.largeimageview;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.hippo.streampipe.InputStreamPipe;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
 /**
  * Choice {@link BitmapSource} or {@link TiledBitmapSource} automatically.
+ * <p>
+ * For {@code TiledBitmapSource}, the EXIF thumbnail is decoded as preview first,
+ * it's ready and shows the preview before the tiles.
+ * See {@link #setSampledPreview(boolean)} for images without thumbnail.
+ * <p>
+ * Prefer {@link #AutoSource(File)} and {@link #AutoSource(FileDescriptor)}
+ * for large images. {@code BitmapRegionDecoder} maps the file instead of
+ * copying the whole data to memory, which it does for {@code InputStream}.
  */
 public class AutoSource extends WrapperSource {
 
     private static final String LOG_TAG = AutoSource.class.getSimpleName();
 
+    // The max width and height of sampled preview
+    private static final int PREVIEW_SIZE = 256;
+    // The max difference of the aspect ratio of the thumbnail and the image
+    private static final float MAX_THUMBNAIL_RATIO_ERROR = 0.05f;
+
     private boolean mInit;
     private int mMaxBitmapSize;
     private int mBitmapLimit;
-    private InitTask mTask;
+    // Volatile for publishPreview() in decode()
+    private volatile InitTask mTask;
     private InputStreamPipe mPipe;
+    private String mImageKey;
+    private Bitmap.Config mBitmapConfig;
+    private boolean mCheapBitmapConfig;
+    private boolean mSampledPreview;
+
+    // Shown until the base ImageSource is set
+    private Bitmap mPreview;
+    private int mImageWidth;
+    private int mImageHeight;
+    private Matrix mMatrix;
+    private Paint mPaint;
+    private RectF mTempRectF;
 
     public AutoSource(@NonNull InputStreamPipe pipe) {
         mPipe = pipe;
     }
 
+    /**
+     * Show the image file.
+     */
+    public AutoSource(@NonNull File file) {
+        mPipe = new FilePipe(file);
+    }
+
+    /**
+     * Show the image in the {@code FileDescriptor}, it must be seekable.
+     * The caller owns it, don't close it until this AutoSource is recycled.
+     */
+    public AutoSource(@NonNull FileDescriptor fd) {
+        mPipe = new FileDescriptorPipe(fd);
+    }
+
+    /**
+     * Set a stable key for the image, so the tiles could be shared
+     * with other {@link TiledBitmapSource} for the same image.
+     * Call it before init.
+     *
+     * @see TiledBitmapSource#setImageKey(String)
+     */
+    public void setImageKey(@Nullable String key) {
+        mImageKey = key;
+    }
+
+    @Nullable
+    protected String getImageKey() {
+        return mImageKey;
+    }
+
+    /**
+     * Set the {@code Bitmap.Config} for tiles of the image.
+     * {@code null} to choose it from the image, it's the default.
+     * {@code ALPHA_8} is drawn as grayscale, but some platform versions
+     * decode it as other configs.
+     * Call it before init.
+     *
+     * @see #chooseBitmapConfig(ImageInfo)
+     */
+    public void setBitmapConfig(@Nullable Bitmap.Config config) {
+        mBitmapConfig = config;
+    }
+
+    /**
+     * Whether to use {@code RGB_565} for opaque images to halve the memory
+     * of tiles. Gradients and skies in photos get banding.
+     * It's {@code false} as default, consider it on low RAM devices.
+     * Call it before init.
+     *
+     * @see #chooseBitmapConfig(ImageInfo)
+     */
+    public void setCheapBitmapConfig(boolean cheap) {
+        mCheapBitmapConfig = cheap;
+    }
+
+    /**
+     * Whether to decode a sampled preview if the image has no EXIF thumbnail.
+     * It's {@code false} as default.
+     * <p>
+     * The sampled preview costs about a full decode pass of the image,
+     * much more for PNG, WebP and progressive JPEG.
+     * It's decoded before the tiles, so the tiles are shown later.
+     * Call it before init.
+     *
+     * @see #decodePreview(BitmapRegionDecoder, Bitmap.Config)
+     */
+    public void setSampledPreview(boolean sampledPreview) {
+        mSampledPreview = sampledPreview;
+    }
+
+    /**
+     * Choose the {@code Bitmap.Config} for tiles of the image if it isn't set.
+     * {@code ARGB_8888} as default, {@code RGB_565} for opaque images
+     * if {@link #setCheapBitmapConfig(boolean)} is {@code true}.
+     * Override it to change the policy.
+     * Called in non-UI thread.
+     */
+    @NonNull
+    protected Bitmap.Config chooseBitmapConfig(@NonNull ImageInfo info) {
+        if (mCheapBitmapConfig && info.isKnown() && !info.hasAlpha()) {
+            return Bitmap.Config.RGB_565;
+        } else {
+            return Bitmap.Config.ARGB_8888;
+        }
+    }
+
     @Override
     protected void onInit() {
         mInit = true;
@@ -87,13 +211,78 @@ public class AutoSource extends WrapperSource {
         mTask.execute();
     }
 
+    private void onPreviewDone(Bitmap preview, int width, int height) {
+        if (mPreview != null) {
+            mPreview.recycle();
+        }
+        mPreview = preview;
+        mImageWidth = width;
+        mImageHeight = height;
+        mMatrix = new Matrix();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        mTempRectF = new RectF();
+        // Ready to show the preview
+        callSelfReady();
+    }
+
     private void onInitDone(ImageSource imageSource) {
         mTask = null;
+        final Bitmap preview = mPreview;
+        final boolean keepPreview = preview != null && imageSource instanceof TiledBitmapSource;
+        if (keepPreview) {
+            // Keep drawing it until tiles are loaded
+            ((TiledBitmapSource) imageSource).setPreview(preview);
+        }
+        // Clear the preview after setImageSource(), it's still ready with
+        // the preview, so it keeps the position instead of calling ready again
         if (imageSource != null) {
             setImageSource(imageSource);
         } else {
             callSelfFailed();
         }
+        mPreview = null;
+        if (preview != null && !keepPreview) {
+            preview.recycle();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return super.isReady() || mPreview != null;
+    }
+
+    @Override
+    public int getWidth() {
+        return super.isReady() ? super.getWidth() : mImageWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return super.isReady() ? super.getHeight() : mImageHeight;
+    }
+
+    @Override
+    public void draw(Canvas canvas, RectF src, RectF dst) {
+        if (super.isReady()) {
+            super.draw(canvas, src, dst);
+        } else if (mPreview != null) {
+            // src is in image, scale it to the preview
+            final float scaleX = (float) mPreview.getWidth() / mImageWidth;
+            final float scaleY = (float) mPreview.getHeight() / mImageHeight;
+            final RectF s = mTempRectF;
+            s.set(src.left * scaleX, src.top * scaleY, src.right * scaleX, src.bottom * scaleY);
+            mMatrix.setRectToRect(s, dst, Matrix.ScaleToFit.FILL);
+            canvas.drawBitmap(mPreview, mMatrix, mPaint);
+        }
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        long usage = super.getMemoryUsage();
+        if (mPreview != null) {
+            usage += LruBitmapPool.getBitmapSize(mPreview);
+        }
+        return usage;
     }
 
     @Override
@@ -103,11 +292,99 @@ public class AutoSource extends WrapperSource {
             mTask.cancel(false);
             mTask = null;
         }
+        if (mPreview != null) {
+            mPreview.recycle();
+            mPreview = null;
+        }
         mPipe = null;
     }
 
+    /**
+     * Show the preview before {@link #decode()} returns.
+     * The preview is recycled if it's too late.
+     * Called in non-UI thread.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     */
+    protected void publishPreview(@NonNull Bitmap preview, int width, int height) {
+        final InitTask task = mTask;
+        if (task == null || !task.publishPreview(preview, width, height)) {
+            preview.recycle();
+        }
+    }
+
+    /**
+     * Decode the EXIF thumbnail of the image as preview, it's shown
+     * before {@code BitmapRegionDecoder} is created. Return {@code null}
+     * if no thumbnail or its aspect ratio isn't the same as the image.
+     * Called in non-UI thread.
+     */
+    @Nullable
+    protected Bitmap decodeThumbnail(@NonNull ImageInfo info,
+            int width, int height, @NonNull Bitmap.Config config) {
+        final byte[] thumbnail = info.getThumbnail();
+        if (thumbnail == null) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(
+                thumbnail, 0, thumbnail.length, newPreviewOptions(config));
+        if (bitmap == null) {
+            return null;
+        }
+        final float ratio = ((float) bitmap.getWidth() / bitmap.getHeight())
+                / ((float) width / height);
+        if (Math.abs(ratio - 1.0f) > MAX_THUMBNAIL_RATIO_ERROR) {
+            // Rotated or with black bars
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the whole image no larger than 256 x 256 as preview,
+     * if there is no thumbnail and {@link #setSampledPreview(boolean)} is {@code true}.
+     * It decodes the whole image once, and delays the tiles for the time.
+     * Return {@code null} to show nothing before tiles.
+     * Called in non-UI thread.
+     */
+    @Nullable
+    protected Bitmap decodePreview(@NonNull BitmapRegionDecoder decoder,
+            @NonNull Bitmap.Config config) {
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+        final BitmapFactory.Options options = newPreviewOptions(config);
+        options.inSampleSize = ImageMath.prevPow2(
+                Math.max(1, Math.max(width, height) / PREVIEW_SIZE));
+        return decoder.decodeRegion(new Rect(0, 0, width, height), options);
+    }
+
+    private static BitmapFactory.Options newPreviewOptions(Bitmap.Config config) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        // ALPHA_8 needs special paint, the preview is small anyway
+        options.inPreferredConfig = config == Bitmap.Config.ALPHA_8
+                ? Bitmap.Config.RGB_565 : config;
+        // Mutable bitmap could be put into BitmapPool
+        options.inMutable = true;
+        return options;
+    }
+
+    // Go back to the start of the stream, open it again if the mark is lost
+    private static InputStream reset(InputStreamPipe pipe, InputStream is) throws IOException {
+        try {
+            is.reset();
+            return is;
+        } catch (IOException e) {
+            pipe.close();
+            return new BufferedInputStream(pipe.open());
+        }
+    }
+
     /**
      * Decode InputStreamPipe to ImageSource.
+     * The InputStreamPipe is opened once, header and bounds are read
+     * from the mark buffer, then the same stream is decoded.
      * Called in non-UI thread.
      */
     protected ImageSource decode() {
@@ -120,27 +397,59 @@ public class AutoSource extends WrapperSource {
             pipe.obtain();
 
             // Decode image info
-            final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(pipe.open(), null, options);
-            pipe.close();
-            if (options.outWidth <= 0 || options.outHeight <= 0) {
+            InputStream is = new BufferedInputStream(pipe.open());
+            is.mark(ImageInfo.MAX_HEADER_SIZE);
+            final ImageInfo info = ImageInfo.decode(is);
+            is.reset();
+            int width = info.getWidth();
+            int height = info.getHeight();
+            if (width <= 0 || height <= 0) {
+                // Let BitmapFactory read the bounds
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(is, null, options);
+                width = options.outWidth;
+                height = options.outHeight;
+                is = reset(pipe, is);
+            }
+            if (width <= 0 || height <= 0) {
                 // It is not a image
                 return null;
             }
 
-            if (options.outWidth <= mBitmapLimit && options.outHeight <= mBitmapLimit) {
+            if (width <= mBitmapLimit && height <= mBitmapLimit) {
                 // BitmapSource
-                options.inJustDecodeBounds = false;
-                final Bitmap bitmap = BitmapFactory.decodeStream(pipe.open(), null, options);
+                final Bitmap bitmap = BitmapFactory.decodeStream(is, null, null);
                 if (bitmap != null) {
                     return new BitmapSource(bitmap);
                 }
             } else {
                 // TiledBitmapSource
-                final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(pipe.open(), false);
+                final Bitmap.Config config = mBitmapConfig != null
+                        ? mBitmapConfig : chooseBitmapConfig(info);
+                final Bitmap thumbnail = decodeThumbnail(info, width, height, config);
+                if (thumbnail != null) {
+                    publishPreview(thumbnail, width, height);
+                }
+                final BitmapRegionDecoder decoder;
+                if (pipe instanceof RandomAccessPipe) {
+                    pipe.close();
+                    decoder = ((RandomAccessPipe) pipe).newBitmapRegionDecoder();
+                } else {
+                    decoder = BitmapRegionDecoder.newInstance(is, false);
+                }
+                pipe.close();
                 if (decoder != null) {
-                    return new TiledBitmapSource(new SkiaRegionDecoder(decoder, Bitmap.Config.ARGB_8888));
+                    if (thumbnail == null && mSampledPreview) {
+                        final Bitmap preview = decodePreview(decoder, config);
+                        if (preview != null) {
+                            publishPreview(preview, width, height);
+                        }
+                    }
+                    final TiledBitmapSource source = new TiledBitmapSource(newRegionDecoder(
+                            new SkiaRegionDecoder(decoder, config, getAlignment(info)), pipe));
+                    source.setImageKey(mImageKey);
+                    return source;
                 }
             }
         } catch (IOException e) {
@@ -156,7 +465,191 @@ public class AutoSource extends WrapperSource {
         return null;
     }
 
-    private static class InitTask extends AsyncTask<Void, Void, ImageSource> {
+    /**
+     * Return the max count of {@link RegionDecoder} for one image.
+     * For files, they share the mapped file, it's
+     * {@link RegionDecoderPool#DEFAULT_MAX_SIZE} as default.
+     * For {@code InputStreamPipe}, each {@code RegionDecoder} keeps its own copy
+     * of the image data, it's 1 to avoid {@link RegionDecoderPool}.
+     * Called in non-UI thread.
+     */
+    protected int getMaxRegionDecoderCount() {
+        return mPipe instanceof RandomAccessPipe ? RegionDecoderPool.DEFAULT_MAX_SIZE : 1;
+    }
+
+    // Tiles cut at multiples of JPEG MCU size don't share MCUs
+    private static int getAlignment(ImageInfo info) {
+        final int mcuWidth = info.getMcuWidth();
+        final int mcuHeight = info.getMcuHeight();
+        if (mcuWidth > 0 && mcuHeight > 0) {
+            return ImageMath.lcm(mcuWidth, mcuHeight);
+        } else {
+            return 1;
+        }
+    }
+
+    // Only files are pooled. InputStreamPipe is released when decode() returns,
+    // it can't be opened again for new RegionDecoders.
+    private RegionDecoder newRegionDecoder(RegionDecoder decoder, InputStreamPipe pipe) {
+        final int count = getMaxRegionDecoderCount();
+        if (count > 1 && pipe instanceof RandomAccessPipe) {
+            return new RegionDecoderPool(decoder, new PipeRegionDecoderFactory(
+                    (RandomAccessPipe) pipe, decoder.getConfig(),
+                    decoder.getPreferredAlignment()), count);
+        } else {
+            return decoder;
+        }
+    }
+
+    // A InputStreamPipe of a file, BitmapRegionDecoder could read it
+    // without copying the data to memory.
+    // newBitmapRegionDecoder() doesn't need obtain() or open(), it works after release().
+    private interface RandomAccessPipe extends InputStreamPipe {
+        BitmapRegionDecoder newBitmapRegionDecoder() throws IOException;
+    }
+
+    private static class FilePipe implements RandomAccessPipe {
+
+        private final File mFile;
+        private InputStream mStream;
+
+        public FilePipe(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public void obtain() {}
+
+        @Override
+        public void release() {}
+
+        @NonNull
+        @Override
+        public InputStream open() throws IOException {
+            if (mStream != null) {
+                throw new IOException("Can't open twice");
+            }
+            mStream = new FileInputStream(mFile);
+            return mStream;
+        }
+
+        @Override
+        public void close() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                mStream = null;
+            }
+        }
+
+        @Override
+        public BitmapRegionDecoder newBitmapRegionDecoder() throws IOException {
+            // A path is read as InputStream and copied to memory,
+            // only a FileDescriptor is mapped if shareable.
+            // The decoder maps or dups the descriptor, so close the stream after it.
+            final FileInputStream stream = new FileInputStream(mFile);
+            try {
+                return BitmapRegionDecoder.newInstance(stream.getFD(), true);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static class FileDescriptorPipe implements RandomAccessPipe {
+
+        private final FileDescriptor mFd;
+        private FileInputStream mStream;
+
+        public FileDescriptorPipe(FileDescriptor fd) {
+            mFd = fd;
+        }
+
+        @Override
+        public void obtain() {}
+
+        @Override
+        public void release() {}
+
+        @NonNull
+        @Override
+        public InputStream open() throws IOException {
+            if (mStream != null) {
+                throw new IOException("Can't open twice");
+            }
+            // The FileInputStream doesn't own the FileDescriptor,
+            // but shares its offset, read from the start
+            mStream = new FileInputStream(mFd);
+            mStream.getChannel().position(0);
+            return mStream;
+        }
+
+        @Override
+        public void close() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                mStream = null;
+            }
+        }
+
+        @Override
+        public BitmapRegionDecoder newBitmapRegionDecoder() throws IOException {
+            // It maps the file if shareable
+            return BitmapRegionDecoder.newInstance(mFd, true);
+        }
+    }
+
+    // Open the file again for each RegionDecoder
+    private static class PipeRegionDecoderFactory implements RegionDecoderPool.Factory {
+
+        private final RandomAccessPipe mPipe;
+        private final Bitmap.Config mConfig;
+        private final int mAlignment;
+
+        public PipeRegionDecoderFactory(RandomAccessPipe pipe, Bitmap.Config config,
+                int alignment) {
+            mPipe = pipe;
+            mConfig = config;
+            mAlignment = alignment;
+        }
+
+        @Override
+        public RegionDecoder newRegionDecoder() {
+            final RandomAccessPipe pipe = mPipe;
+            // The pool might call it in different threads
+            synchronized (pipe) {
+                try {
+                    final BitmapRegionDecoder decoder = pipe.newBitmapRegionDecoder();
+                    if (decoder != null) {
+                        return new SkiaRegionDecoder(decoder, mConfig, mAlignment);
+                    } else {
+                        return null;
+                    }
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static class Preview {
+        public Bitmap bitmap;
+        public int width;
+        public int height;
+    }
+
+    private static class InitTask extends AsyncTask<Void, Preview, ImageSource> {
 
         private final WeakReference<AutoSource> mAutoSource;
 
@@ -164,6 +657,30 @@ public class AutoSource extends WrapperSource {
             mAutoSource = new WeakReference<>(autoSource);
         }
 
+        // Return false if cancelled
+        public boolean publishPreview(Bitmap bitmap, int width, int height) {
+            if (isCancelled()) {
+                return false;
+            }
+            final Preview preview = new Preview();
+            preview.bitmap = bitmap;
+            preview.width = width;
+            preview.height = height;
+            publishProgress(preview);
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(Preview... values) {
+            final Preview preview = values[0];
+            final AutoSource autoSource = mAutoSource.get();
+            if (autoSource == null || isCancelled()) {
+                preview.bitmap.recycle();
+            } else {
+                autoSource.onPreviewDone(preview.bitmap, preview.width, preview.height);
+            }
+        }
+
         @Override
         protected ImageSource doInBackground(Void... params) {
             final AutoSource autoSource = mAutoSource.get();
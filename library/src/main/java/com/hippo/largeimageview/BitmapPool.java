@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A pool to reuse {@link Bitmap}s.
+ * {@link RegionDecoder} decodes tiles into {@code Bitmap}s from it,
+ * and {@link TiledBitmapSource} puts the tiles it doesn't need back.
+ * <p>
+ * Implement it to share the pool of the app.
+ * All methods might be called in any thread.
+ */
+public interface BitmapPool {
+
+    /**
+     * Return a mutable {@code Bitmap} with exactly the width,
+     * the height and the config. Return {@code null} if no such one.
+     * The pool doesn't own it anymore.
+     */
+    @Nullable
+    Bitmap get(int width, int height, @NonNull Bitmap.Config config);
+
+    /**
+     * Put the {@code Bitmap} back to the pool, the pool owns it now.
+     * If the pool can't reuse it, the pool should recycle it.
+     */
+    void put(@NonNull Bitmap bitmap);
+
+    /**
+     * Recycle all the {@code Bitmap}s in the pool.
+     */
+    void clear();
+}
@@ -81,6 +81,11 @@ public class BitmapSource extends ImageSource {
         }
     }
 
+    @Override
+    public long getMemoryUsage() {
+        return mBitmap != null ? LruBitmapPool.getBitmapSize(mBitmap) : 0;
+    }
+
     @Override
     public void recycle() {
         if (mBitmap != null) {
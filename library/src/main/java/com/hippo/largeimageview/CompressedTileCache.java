@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A process-wide cache for the pixels of evicted tiles, compressed in memory
+ * by LZ4. Restoring a tile from it takes a few milliseconds,
+ * much faster than decoding a progressive JPEG or a large PNG again.
+ * <p>
+ * When a {@link TiledBitmapSource} releases a tile for space,
+ * the tile is compressed in the decode {@code Executor}. It's looked up
+ * before {@link DiskTileCache} and the decoder when the tile is wanted again.
+ * <p>
+ * Flat images like comics and screenshots compress well, photos compress little.
+ * Tiles which save less than 1/4 of the memory are not kept.
+ * The total bytes of compressed tiles is limited, the least recently
+ * used ones are dropped first. It's disabled until the max size is set.
+ */
+public final class CompressedTileCache {
+
+    private static final String LOG_TAG = CompressedTileCache.class.getSimpleName();
+
+    private static final CompressedTileCache INSTANCE = new CompressedTileCache();
+
+    // Keep the compressed tile only if it's smaller than it
+    private static final float MAX_COMPRESSION_RATIO = 0.75f;
+    // The max count of idle buffers for pixels and compressed data
+    private static final int MAX_IDLE_BUFFERS = 2;
+
+    private static class Block {
+        public int width;
+        public int height;
+        public Bitmap.Config config;
+        public byte[] data;
+    }
+
+    private int mMaxSize;
+    private int mSize;
+    // From the least recently used
+    private final LinkedHashMap<String, Block> mMap = new LinkedHashMap<>(0, 0.75f, true);
+    // Reused buffers, guarded by itself
+    private final List<byte[]> mBuffers = new ArrayList<>();
+
+    private CompressedTileCache() {}
+
+    @NonNull
+    public static CompressedTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static String getKey(String imageKey, int sample, Rect rect) {
+        return imageKey + '_' + sample + '_' + rect.left + '_' + rect.top
+                + '_' + rect.right + '_' + rect.bottom;
+    }
+
+    /**
+     * Set the max total bytes of compressed tiles. 0 to disable the cache.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Return the max total bytes of compressed tiles.
+     */
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Return the total bytes of compressed tiles.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    private byte[] obtainBuffer(int size) {
+        synchronized (mBuffers) {
+            for (int i = 0, n = mBuffers.size(); i < n; i++) {
+                if (mBuffers.get(i).length >= size) {
+                    return mBuffers.remove(i);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        synchronized (mBuffers) {
+            if (mBuffers.size() < MAX_IDLE_BUFFERS) {
+                mBuffers.add(buffer);
+            } else {
+                // Keep the larger ones
+                for (int i = 0; i < MAX_IDLE_BUFFERS; i++) {
+                    if (mBuffers.get(i).length < buffer.length) {
+                        mBuffers.set(i, buffer);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress the tile and keep it. The caller still owns the {@code Bitmap}.
+     * Call it in non-UI thread.
+     */
+    void put(@NonNull String imageKey, int sample, @NonNull Rect rect, @NonNull Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || bitmap.isRecycled()) {
+            return;
+        }
+        final String key = getKey(imageKey, sample, rect);
+        synchronized (this) {
+            if (mMaxSize <= 0 || mMap.get(key) != null) {
+                return;
+            }
+        }
+
+        final int size = LruBitmapPool.getBitmapSize(bitmap);
+        byte[] pixels = null;
+        byte[] compressed = null;
+        final Block block = new Block();
+        try {
+            pixels = obtainBuffer(size);
+            compressed = obtainBuffer(Lz4Block.maxCompressedLength(size));
+            bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels, 0, size));
+            final int length = Lz4Block.compress(pixels, 0, size, compressed, 0);
+            if (length > size * MAX_COMPRESSION_RATIO) {
+                return;
+            }
+            block.width = bitmap.getWidth();
+            block.height = bitmap.getHeight();
+            block.config = config;
+            block.data = Arrays.copyOf(compressed, length);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Can't compress tile", e);
+            return;
+        } finally {
+            if (pixels != null) {
+                releaseBuffer(pixels);
+            }
+            if (compressed != null) {
+                releaseBuffer(compressed);
+            }
+        }
+
+        synchronized (this) {
+            final Block old = mMap.put(key, block);
+            if (old != null) {
+                mSize -= old.data.length;
+            }
+            mSize += block.data.length;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Restore the tile to a {@code Bitmap} from the pool or a new one,
+     * the caller owns it. Return {@code null} if the tile isn't kept.
+     * Call it in non-UI thread.
+     */
+    @Nullable
+    Bitmap get(@NonNull String imageKey, int sample, @NonNull Rect rect,
+            @Nullable BitmapPool pool) {
+        final String key = getKey(imageKey, sample, rect);
+        final Block block;
+        synchronized (this) {
+            if (mMap.isEmpty()) {
+                return null;
+            }
+            block = mMap.get(key);
+        }
+        if (block == null) {
+            return null;
+        }
+
+        Bitmap bitmap = null;
+        byte[] pixels = null;
+        try {
+            if (pool != null) {
+                bitmap = pool.get(block.width, block.height, block.config);
+            }
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(block.width, block.height, block.config);
+            }
+            final int size = LruBitmapPool.getBitmapSize(bitmap);
+            pixels = obtainBuffer(size);
+            if (Lz4Block.decompress(block.data, 0, block.data.length, pixels, 0, size) != size) {
+                throw new IllegalArgumentException("Bad pixel size");
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, size));
+            return bitmap;
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Can't restore tile", e);
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            remove(key);
+            return null;
+        } finally {
+            if (pixels != null) {
+                releaseBuffer(pixels);
+            }
+        }
+    }
+
+    /**
+     * Drop the tile.
+     */
+    void remove(@NonNull String imageKey, int sample, @NonNull Rect rect) {
+        remove(getKey(imageKey, sample, rect));
+    }
+
+    private synchronized void remove(String key) {
+        final Block block = mMap.remove(key);
+        if (block != null) {
+            mSize -= block.data.length;
+        }
+    }
+
+    /**
+     * Drop all the tiles of the image key.
+     */
+    synchronized void removeAll(@NonNull String imageKey) {
+        final String prefix = imageKey + '_';
+        final Iterator<Map.Entry<String, Block>> iterator = mMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Block> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                mSize -= entry.getValue().data.length;
+            }
+        }
+    }
+
+    /**
+     * Drop the least recently used tiles
+     * until the total bytes is not more than {@code maxSize}.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Block> iterator = mMap.values().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Block block = iterator.next();
+            iterator.remove();
+            mSize -= block.data.length;
+        }
+    }
+
+    /**
+     * Drop all tiles and buffers.
+     */
+    public void clear() {
+        trimToSize(0);
+        synchronized (mBuffers) {
+            mBuffers.clear();
+        }
+    }
+}
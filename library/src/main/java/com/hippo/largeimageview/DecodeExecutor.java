@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the {@link Executor} to decode tiles.
+ * <p>
+ * {@link android.os.AsyncTask#execute(Object[])} runs every task
+ * of the process one by one, so tiles are decoded in a dedicated
+ * thread pool, whose size is the count of CPU cores by default.
+ */
+public final class DecodeExecutor {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Don't fight with UI thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "LargeImageView-Decode #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static Executor sDefault;
+
+    private DecodeExecutor() {}
+
+    /**
+     * Return the default {@code Executor} to decode tiles.
+     * It is created lazily with the count of CPU cores as parallelism.
+     */
+    @NonNull
+    public static synchronized Executor getDefault() {
+        if (sDefault == null) {
+            sDefault = newExecutor(CPU_COUNT, DEFAULT_THREAD_FACTORY);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replace the default {@code Executor}, for example,
+     * to share the thread pool of the app.
+     * It only affects {@link TiledBitmapSource} created after it.
+     */
+    public static synchronized void setDefault(@NonNull Executor executor) {
+        sDefault = executor;
+    }
+
+    /**
+     * Create a {@code Executor} with the count of CPU cores
+     * as parallelism, threads are created by the {@code ThreadFactory}.
+     */
+    @NonNull
+    public static Executor newExecutor(@NonNull ThreadFactory factory) {
+        return newExecutor(CPU_COUNT, factory);
+    }
+
+    /**
+     * Create a {@code Executor} which runs at most {@code threads} tasks
+     * at the same time, threads are created by the {@code ThreadFactory}.
+     * Idle threads are terminated after a while.
+     */
+    @NonNull
+    public static Executor newExecutor(int threads, @NonNull ThreadFactory factory) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.support.annotation.NonNull;
+
+/**
+ * The default {@link TilingPolicy}.
+ * <p>
+ * Tiles start from max bitmap size / 4 squares. They grow if the measured
+ * overhead of decode calls is too large, and shrink if the tile cache
+ * can't hold enough of them. If a sample of the image fits in a tile
+ * in width or height, like a long strip or a coarse sample, a tile covers
+ * the whole width or height, and the area goes to the other side.
+ */
+public class DefaultTilingPolicy implements TilingPolicy {
+
+    private static final int MIN_TILE_SIZE = 128;
+    // The tile cache should hold so many tiles at least
+    private static final int MIN_CACHED_TILES = 8;
+    // The max ratio of the fixed overhead in the time of a decode call
+    private static final float MAX_OVERHEAD_RATIO = 0.1f;
+
+    @Override
+    public void getTileSize(@NonNull Params params, int sample, @NonNull int[] size) {
+        // Never larger than max bitmap size / 2
+        final int maxSize = Math.max(MIN_TILE_SIZE,
+                ImageMath.prevPow2(params.getMaxBitmapSize() / 2));
+        final int baseSize = Math.max(MIN_TILE_SIZE,
+                ImageMath.prevPow2(params.getMaxBitmapSize() / 4));
+        final long minArea = (long) MIN_TILE_SIZE * MIN_TILE_SIZE;
+        final long maxArea = (long) maxSize * maxSize;
+        long area = (long) baseSize * baseSize;
+
+        // overhead / (overhead + cost * area) <= MAX_OVERHEAD_RATIO
+        final long overhead = params.getDecodeOverhead();
+        final float cost = params.getDecodeCostPerPixel();
+        if (overhead > 0 && cost > 0) {
+            final double wantedArea = overhead * (1.0f - MAX_OVERHEAD_RATIO)
+                    / (MAX_OVERHEAD_RATIO * cost);
+            while (area < wantedArea && area < maxArea) {
+                area *= 2;
+            }
+        }
+
+        // Keep enough tiles in memory
+        final long memoryArea = params.getMaxMemory()
+                / ((long) MIN_CACHED_TILES * Math.max(1, params.getBytesPerPixel()));
+        while (area > memoryArea && area > minArea) {
+            area /= 2;
+        }
+
+        final int width = ImageMath.ceilDiv(params.getImageWidth(), sample);
+        final int height = ImageMath.ceilDiv(params.getImageHeight(), sample);
+        final boolean fitWidth = width <= maxSize && (long) width * MIN_TILE_SIZE <= area;
+        final boolean fitHeight = height <= maxSize && (long) height * MIN_TILE_SIZE <= area;
+        if (fitWidth && (!fitHeight || width >= height)) {
+            // Whole width, like a tall strip
+            size[0] = width;
+            size[1] = fitHeight && (long) width * height <= area
+                    ? height : getSide(area / width, maxSize);
+        } else if (fitHeight) {
+            // Whole height, like a wide strip
+            size[0] = fitWidth && (long) width * height <= area
+                    ? width : getSide(area / height, maxSize);
+            size[1] = height;
+        } else {
+            // Squares, or twice as wide as high
+            final int side = getSide((long) Math.sqrt(area), maxSize);
+            size[0] = getSide(area / side, maxSize);
+            size[1] = side;
+        }
+    }
+
+    // The power of 2 side no larger than length, in [MIN_TILE_SIZE, maxSize]
+    private static int getSide(long length, int maxSize) {
+        final int side = ImageMath.prevPow2((int) Math.min(length, maxSize));
+        return Math.max(MIN_TILE_SIZE, side);
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A disk cache for decoded tiles. Pixels are stored raw, and read back
+ * by memory-mapped file, it is much faster than decoding again.
+ * <p>
+ * Files are named by image key, sample and tile rect,
+ * so the image key must be stable across app restarts.
+ * The total bytes of files is limited,
+ * the least recently used ones are deleted first.
+ * <p>
+ * {@link #get(String, int, Rect, BitmapPool)} does IO, call it in non-UI thread.
+ * {@link #put(String, int, Rect, Bitmap)} copies the pixels, then writes them
+ * in a background thread of the cache, so the tile is shown without waiting.
+ *
+ * @see TiledBitmapSource#setDiskTileCache(DiskTileCache)
+ */
+public class DiskTileCache {
+
+    private static final String LOG_TAG = DiskTileCache.class.getSimpleName();
+
+    private static final String DEFAULT_DIR_NAME = "large_image_view_tiles";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x4c495654; // LIVT
+    // magic, width, height, config
+    private static final int HEADER_SIZE = 4 * 4;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Bitmap.Config[] CONFIGS = Bitmap.Config.values();
+
+    // Drop new tiles if so many are waiting to write, each keeps a copy of pixels
+    private static final int MAX_PENDING_WRITES = 4;
+
+    private static final ThreadFactory WRITE_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "LargeImageView-DiskTileCache");
+        }
+    };
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    // Guarded by this
+    private boolean mIndexed;
+    private long mSize;
+    // File name to file size, from the least recently used
+    private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<>(0, 0.75f, true);
+    // File names waiting to write
+    private final Set<String> mPendingNames = new HashSet<>();
+    private Executor mWriteExecutor;
+
+    /**
+     * Create a DiskTileCache in the cache dir of the app.
+     */
+    public DiskTileCache(@NonNull Context context, long maxSize) {
+        this(new File(context.getCacheDir(), DEFAULT_DIR_NAME), maxSize);
+    }
+
+    /**
+     * @param dir the dir to store tiles, only used by this cache
+     * @param maxSize the max total bytes of files
+     */
+    public DiskTileCache(@NonNull File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getSize() {
+        ensureIndex();
+        return mSize;
+    }
+
+    // Read the files in the dir, the oldest is the least recently used
+    private void ensureIndex() {
+        if (mIndexed) {
+            return;
+        }
+        mIndexed = true;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(LOG_TAG, "Can't create dir: " + mDir);
+            return;
+        }
+
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left by a crash
+                file.delete();
+                continue;
+            }
+            final long size = file.length();
+            mIndex.put(name, size);
+            mSize += size;
+        }
+        trimToSize(mMaxSize);
+    }
+
+    private static String getFileName(String imageKey, int sample, Rect rect) {
+        final String key = imageKey + '_' + sample + '_' + rect.left + '_' + rect.top
+                + '_' + rect.right + '_' + rect.bottom;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            final char[] chars = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+                chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Unlikely, use hash code instead
+            return Integer.toHexString(key.hashCode()) + Integer.toHexString(key.length());
+        }
+    }
+
+    /**
+     * Read a tile from the cache. The pixels are copied into a {@code Bitmap}
+     * from the {@code BitmapPool} if possible.
+     * Return {@code null} if miss.
+     */
+    @Nullable
+    public Bitmap get(@NonNull String imageKey, int sample, @NonNull Rect rect,
+            @Nullable BitmapPool pool) {
+        final String name = getFileName(imageKey, sample, rect);
+        synchronized (this) {
+            ensureIndex();
+            if (mIndex.get(name) == null) {
+                return null;
+            }
+        }
+
+        final File file = new File(mDir, name);
+        RandomAccessFile raf = null;
+        Bitmap bitmap = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Bad header");
+            }
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            final int configIndex = buffer.getInt();
+            if (width <= 0 || height <= 0 || configIndex < 0 || configIndex >= CONFIGS.length) {
+                throw new IOException("Bad header");
+            }
+            final Bitmap.Config config = CONFIGS[configIndex];
+
+            if (pool != null) {
+                bitmap = pool.get(width, height, config);
+            }
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, config);
+            }
+            if (buffer.remaining() < LruBitmapPool.getBitmapSize(bitmap)) {
+                throw new IOException("Bad file size");
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+
+            // Touch it for next launch
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Can't read tile: " + file, e);
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            remove(name);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Write a tile to the cache. The pixels are copied,
+     * then written in a background thread. It's dropped
+     * if too many tiles are waiting to write.
+     * The {@code Bitmap} is only read, the caller still owns it.
+     */
+    public void put(@NonNull String imageKey, int sample, @NonNull Rect rect,
+            @NonNull Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || bitmap.isRecycled()) {
+            return;
+        }
+        final String name = getFileName(imageKey, sample, rect);
+        final int pixelSize = LruBitmapPool.getBitmapSize(bitmap);
+        final long size = HEADER_SIZE + pixelSize;
+        synchronized (this) {
+            ensureIndex();
+            if (size > mMaxSize || mIndex.get(name) != null || mPendingNames.contains(name)
+                    || mPendingNames.size() >= MAX_PENDING_WRITES) {
+                return;
+            }
+            mPendingNames.add(name);
+        }
+
+        final byte[] pixels;
+        try {
+            pixels = new byte[pixelSize];
+            bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.w(LOG_TAG, "Can't copy tile", e);
+            removePending(name);
+            return;
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(name, size, width, height, config, pixels);
+                } finally {
+                    removePending(name);
+                }
+            }
+        });
+    }
+
+    private synchronized Executor getWriteExecutor() {
+        if (mWriteExecutor == null) {
+            // Write one by one, don't fight with decoding
+            mWriteExecutor = DecodeExecutor.newExecutor(1, WRITE_THREAD_FACTORY);
+        }
+        return mWriteExecutor;
+    }
+
+    private synchronized void removePending(String name) {
+        mPendingNames.remove(name);
+    }
+
+    // Write the tile to a temp file, then rename it
+    private void write(String name, long size, int width, int height,
+            Bitmap.Config config, byte[] pixels) {
+        final File file = new File(mDir, name);
+        final File temp = new File(mDir, name + TEMP_SUFFIX);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            raf.setLength(size);
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putInt(config.ordinal());
+            buffer.put(pixels);
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Can't write tile: " + file, e);
+            closeQuietly(raf);
+            temp.delete();
+            return;
+        }
+        closeQuietly(raf);
+
+        synchronized (this) {
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            final Long old = mIndex.put(name, size);
+            if (old != null) {
+                mSize -= old;
+            }
+            mSize += size;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    private synchronized void remove(String name) {
+        final Long size = mIndex.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDir, name).delete();
+    }
+
+    /**
+     * Delete the least recently used files
+     * until the total bytes is not more than {@code maxSize}.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        ensureIndex();
+        final Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            mSize -= entry.getValue();
+            new File(mDir, entry.getKey()).delete();
+        }
+    }
+
+    /**
+     * Delete all files.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
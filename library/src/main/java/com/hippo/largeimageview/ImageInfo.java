@@ -0,0 +1,484 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The pixel info of an image, read from its header.
+ * It tells whether the image has alpha and whether it is grayscale,
+ * to choose a cheaper {@link android.graphics.Bitmap.Config}.
+ * It also holds the size of the image, so {@code inJustDecodeBounds}
+ * isn't needed, and the EXIF thumbnail of JPEG to show as preview.
+ * <p>
+ * JPEG, PNG and WebP are supported.
+ */
+public final class ImageInfo {
+
+    /**
+     * The info of unsupported or broken images. It has alpha and color.
+     */
+    public static final ImageInfo UNKNOWN = new ImageInfo(false, true, false, 0, 0, null);
+
+    /**
+     * The max bytes {@link #decode(InputStream)} reads.
+     */
+    public static final int MAX_HEADER_SIZE = 128 * 1024;
+
+    private static final int PNG_COLOR_GRAY = 0;
+    private static final int PNG_COLOR_GRAY_ALPHA = 4;
+    private static final int PNG_COLOR_RGBA = 6;
+
+    private static final int JPEG_APP1 = 0xe1;
+    private static final int EXIF_TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int EXIF_TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private final boolean mKnown;
+    private final boolean mAlpha;
+    private final boolean mGrayscale;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMcuWidth;
+    private final int mMcuHeight;
+    private final byte[] mThumbnail;
+
+    private ImageInfo(boolean known, boolean alpha, boolean grayscale,
+            int width, int height, byte[] thumbnail) {
+        this(known, alpha, grayscale, width, height, 0, 0, thumbnail);
+    }
+
+    private ImageInfo(boolean known, boolean alpha, boolean grayscale,
+            int width, int height, int mcuWidth, int mcuHeight, byte[] thumbnail) {
+        mKnown = known;
+        mAlpha = alpha;
+        mGrayscale = grayscale;
+        mWidth = width;
+        mHeight = height;
+        mMcuWidth = mcuWidth;
+        mMcuHeight = mcuHeight;
+        mThumbnail = thumbnail;
+    }
+
+    /**
+     * Return {@code false} if the image format is not supported.
+     */
+    public boolean isKnown() {
+        return mKnown;
+    }
+
+    /**
+     * Return {@code true} if the image might have transparent pixels.
+     */
+    public boolean hasAlpha() {
+        return mAlpha;
+    }
+
+    /**
+     * Return {@code true} if the image only has gray pixels.
+     */
+    public boolean isGrayscale() {
+        return mGrayscale;
+    }
+
+    /**
+     * Return the width of the image, 0 if unknown.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Return the height of the image, 0 if unknown.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Return the width of the JPEG MCU, the minimum coded unit,
+     * 0 if it's not a JPEG. A JPEG decoder decodes whole MCUs.
+     */
+    public int getMcuWidth() {
+        return mMcuWidth;
+    }
+
+    /**
+     * Return the height of the JPEG MCU, 0 if it's not a JPEG.
+     */
+    public int getMcuHeight() {
+        return mMcuHeight;
+    }
+
+    /**
+     * Return the JPEG data of the thumbnail in EXIF,
+     * or {@code null} if the image doesn't have one.
+     */
+    @Nullable
+    public byte[] getThumbnail() {
+        return mThumbnail;
+    }
+
+    /**
+     * Read the header of the image from the {@code InputStream}.
+     * At most {@link #MAX_HEADER_SIZE} bytes are read,
+     * so it works with {@link InputStream#mark(int)}.
+     * It never returns {@code null}, {@link #UNKNOWN} if failed.
+     */
+    @NonNull
+    public static ImageInfo decode(@NonNull InputStream is) throws IOException {
+        final Reader reader = new Reader(is);
+        final byte[] magic = new byte[12];
+        if (!reader.read(magic, magic.length)) {
+            return UNKNOWN;
+        }
+
+        if ((magic[0] & 0xff) == 0xff && (magic[1] & 0xff) == 0xd8) {
+            return decodeJpeg(reader, magic);
+        } else if ((magic[0] & 0xff) == 0x89 && magic[1] == 'P' && magic[2] == 'N'
+                && magic[3] == 'G') {
+            return decodePng(reader);
+        } else if (magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F'
+                && magic[8] == 'W' && magic[9] == 'E' && magic[10] == 'B' && magic[11] == 'P') {
+            return decodeWebp(reader);
+        } else {
+            return UNKNOWN;
+        }
+    }
+
+    // Find SOF segment, its component count tells grayscale or color,
+    // the max sampling factors of components tell the MCU size.
+    // The EXIF thumbnail is in APP1 segment before it.
+    private static ImageInfo decodeJpeg(Reader reader, byte[] magic) throws IOException {
+        // Skip the rest of magic
+        final int offset = 2;
+        final byte[] rest = new byte[magic.length - offset];
+        System.arraycopy(magic, offset, rest, 0, rest.length);
+        reader.unread(rest);
+
+        final byte[] buffer = new byte[6];
+        byte[] thumbnail = null;
+        for (;;) {
+            // Find marker
+            int marker = reader.read();
+            if (marker != 0xff) {
+                return UNKNOWN;
+            }
+            do {
+                marker = reader.read();
+            } while (marker == 0xff);
+            if (marker < 0) {
+                return UNKNOWN;
+            }
+
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // No length
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // EOI or SOS, no SOF
+                return UNKNOWN;
+            }
+
+            final int length = reader.readShort();
+            if (length < 2) {
+                return UNKNOWN;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf
+                    && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // SOF: precision, height, width, components
+                if (length < 2 + buffer.length || !reader.read(buffer, buffer.length)) {
+                    return UNKNOWN;
+                }
+                final int height = ((buffer[1] & 0xff) << 8) | (buffer[2] & 0xff);
+                final int width = ((buffer[3] & 0xff) << 8) | (buffer[4] & 0xff);
+                final int components = buffer[5] & 0xff;
+                // Component: id, sampling factors, quantization table
+                final byte[] specs = new byte[Math.min(components, (length - 8) / 3) * 3];
+                int maxH = 1;
+                int maxV = 1;
+                if (components > 1 && reader.read(specs, specs.length)) {
+                    for (int i = 1; i < specs.length; i += 3) {
+                        maxH = Math.max(maxH, (specs[i] >> 4) & 0x0f);
+                        maxV = Math.max(maxV, specs[i] & 0x0f);
+                    }
+                }
+                // The MCU of one component is one block
+                return new ImageInfo(true, false, components == 1, width, height,
+                        8 * maxH, 8 * maxV, thumbnail);
+            }
+            if (marker == JPEG_APP1 && thumbnail == null) {
+                final byte[] segment = new byte[length - 2];
+                if (!reader.read(segment, segment.length)) {
+                    return UNKNOWN;
+                }
+                thumbnail = getExifThumbnail(segment);
+                continue;
+            }
+            if (!reader.skip(length - 2)) {
+                return UNKNOWN;
+            }
+        }
+    }
+
+    // Get the JPEG thumbnail in IFD1 of the APP1 segment, null if no one
+    @Nullable
+    private static byte[] getExifThumbnail(byte[] segment) {
+        // "Exif\0\0", then TIFF header: byte order, 42, offset of IFD0
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x'
+                || segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+            return null;
+        }
+        final int tiff = 6;
+        final boolean little;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            little = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            little = false;
+        } else {
+            return null;
+        }
+
+        // Offsets are from TIFF header, the offset of IFD1 is after IFD0 entries
+        final long ifd0 = getInt(segment, tiff + 4L, little);
+        final int ifd0Count = getShort(segment, tiff + ifd0, little);
+        if (ifd0 < 0 || ifd0Count < 0) {
+            return null;
+        }
+        final long ifd1 = getInt(segment, tiff + ifd0 + 2 + ifd0Count * 12L, little);
+        final int ifd1Count = getShort(segment, tiff + ifd1, little);
+        if (ifd1 <= 0 || ifd1Count < 0) {
+            return null;
+        }
+
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < ifd1Count; i++) {
+            // Tag, type, count, value
+            final long entry = tiff + ifd1 + 2 + i * 12L;
+            final int tag = getShort(segment, entry, little);
+            if (tag == EXIF_TAG_THUMBNAIL_OFFSET) {
+                offset = getInt(segment, entry + 8, little);
+            } else if (tag == EXIF_TAG_THUMBNAIL_LENGTH) {
+                length = getInt(segment, entry + 8, little);
+            }
+        }
+        if (offset <= 0 || length <= 0 || tiff + offset + length > segment.length) {
+            return null;
+        }
+        return Arrays.copyOfRange(segment, (int) (tiff + offset), (int) (tiff + offset + length));
+    }
+
+    // Return -1 if out of bounds
+    private static int getShort(byte[] data, long offset, boolean little) {
+        if (offset < 0 || offset + 2 > data.length) {
+            return -1;
+        }
+        final int b0 = data[(int) offset] & 0xff;
+        final int b1 = data[(int) offset + 1] & 0xff;
+        return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    // Return -1 if out of bounds, it's unsigned
+    private static long getInt(byte[] data, long offset, boolean little) {
+        final int high = getShort(data, little ? offset + 2 : offset, little);
+        final int low = getShort(data, little ? offset : offset + 2, little);
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+        return ((long) high << 16) | low;
+    }
+
+    // Read color type in IHDR, and look for tRNS before IDAT
+    private static ImageInfo decodePng(Reader reader) throws IOException {
+        // Chunk type of IHDR, its length is in magic
+        final byte[] buffer = new byte[13];
+        if (!reader.read(buffer, 4) || buffer[0] != 'I' || buffer[1] != 'H'
+                || buffer[2] != 'D' || buffer[3] != 'R') {
+            return UNKNOWN;
+        }
+        // Width, height, bit depth, color type, compression, filter, interlace
+        if (!reader.read(buffer, 13) || !reader.skip(4)) {
+            return UNKNOWN;
+        }
+        final int width = getBigEndianInt(buffer, 0);
+        final int height = getBigEndianInt(buffer, 4);
+        final int colorType = buffer[9];
+        final boolean grayscale = colorType == PNG_COLOR_GRAY || colorType == PNG_COLOR_GRAY_ALPHA;
+        if (colorType == PNG_COLOR_GRAY_ALPHA || colorType == PNG_COLOR_RGBA) {
+            return new ImageInfo(true, true, grayscale, width, height, null);
+        }
+
+        for (;;) {
+            if (!reader.read(buffer, 8)) {
+                return UNKNOWN;
+            }
+            final int length = getBigEndianInt(buffer, 0);
+            if (buffer[4] == 't' && buffer[5] == 'R' && buffer[6] == 'N' && buffer[7] == 'S') {
+                // Transparency for gray, RGB or palette
+                return new ImageInfo(true, true, grayscale, width, height, null);
+            }
+            if (buffer[4] == 'I' && buffer[5] == 'D' && buffer[6] == 'A' && buffer[7] == 'T') {
+                return new ImageInfo(true, false, grayscale, width, height, null);
+            }
+            // Data and CRC
+            if (length < 0 || !reader.skip(length + 4L)) {
+                return UNKNOWN;
+            }
+        }
+    }
+
+    // Check the first chunk, WebP is never decoded to grayscale
+    private static ImageInfo decodeWebp(Reader reader) throws IOException {
+        final byte[] buffer = new byte[18];
+        if (!reader.read(buffer, 13) || buffer[0] != 'V'
+                || buffer[1] != 'P' || buffer[2] != '8') {
+            return UNKNOWN;
+        }
+        // The size of lossy and extended is after
+        final boolean hasSize = reader.read(buffer, 13, 5);
+        switch (buffer[3]) {
+            case ' ': {
+                // Lossy, no alpha. Frame tag, start code, then 14 bits width and height
+                final int width = hasSize ? getLittleEndianInt(buffer, 14, 2) & 0x3fff : 0;
+                final int height = hasSize ? getLittleEndianInt(buffer, 16, 2) & 0x3fff : 0;
+                return new ImageInfo(true, false, false, width, height, null);
+            }
+            case 'L': {
+                // Lossless, signature, then 14 bits width - 1, 14 bits height - 1, 1 bit alpha
+                final int bits = getLittleEndianInt(buffer, 9, 4);
+                final int width = (bits & 0x3fff) + 1;
+                final int height = ((bits >> 14) & 0x3fff) + 1;
+                return new ImageInfo(true, (buffer[12] & 0x10) != 0, false, width, height, null);
+            }
+            case 'X': {
+                // Extended, alpha flag in flags, then 24 bits width - 1 and height - 1
+                final int width = hasSize ? getLittleEndianInt(buffer, 12, 3) + 1 : 0;
+                final int height = hasSize ? getLittleEndianInt(buffer, 15, 3) + 1 : 0;
+                return new ImageInfo(true, (buffer[8] & 0x10) != 0, false, width, height, null);
+            }
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static int getBigEndianInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int getLittleEndianInt(byte[] data, int offset, int length) {
+        int n = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            n = (n << 8) | (data[offset + i] & 0xff);
+        }
+        return n;
+    }
+
+    // Read the InputStream without exceeding MAX_HEADER_SIZE
+    private static class Reader {
+
+        private final InputStream mInputStream;
+        private int mPosition;
+        private byte[] mUnread;
+        private int mUnreadPosition;
+
+        public Reader(InputStream is) {
+            mInputStream = is;
+        }
+
+        public void unread(byte[] bytes) {
+            mUnread = bytes;
+            mUnreadPosition = 0;
+        }
+
+        // Return -1 if the end is reached
+        public int read() throws IOException {
+            if (mUnread != null && mUnreadPosition < mUnread.length) {
+                return mUnread[mUnreadPosition++] & 0xff;
+            }
+            if (mPosition >= MAX_HEADER_SIZE) {
+                return -1;
+            }
+            final int b = mInputStream.read();
+            if (b >= 0) {
+                ++mPosition;
+            }
+            return b;
+        }
+
+        // Return -1 if the end is reached
+        public int readShort() throws IOException {
+            final int high = read();
+            final int low = read();
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            return (high << 8) | low;
+        }
+
+        // Return false if the end is reached
+        public boolean read(byte[] buffer, int length) throws IOException {
+            return read(buffer, 0, length);
+        }
+
+        // Return false if the end is reached
+        public boolean read(byte[] buffer, int offset, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                final int b = read();
+                if (b < 0) {
+                    return false;
+                }
+                buffer[offset + i] = (byte) b;
+            }
+            return true;
+        }
+
+        // Return false if the end is reached
+        public boolean skip(long length) throws IOException {
+            // Skip unread bytes first
+            while (length > 0 && mUnread != null && mUnreadPosition < mUnread.length) {
+                ++mUnreadPosition;
+                --length;
+            }
+            if (mPosition + length > MAX_HEADER_SIZE) {
+                return false;
+            }
+            while (length > 0) {
+                long skipped = mInputStream.skip(length);
+                if (skipped <= 0) {
+                    // Some InputStream can't skip
+                    if (mInputStream.read() < 0) {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                mPosition += skipped;
+                length -= skipped;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * The per-frame math of {@link LargeImageView} and {@link TiledBitmapSource}.
+ * <p>
+ * It only needs {@code Rect} and {@code RectF}, which are plain Java,
+ * so the benchmark module runs it on a JVM.
+ */
+final class ImageMath {
+
+    private ImageMath() {}
+
+    static float lerp(float start, float stop, float amount) {
+        return start + (stop - start) * amount;
+    }
+
+    static float norm(float start, float stop, float value) {
+        if (stop == start) {
+            if (stop == value) {
+                return 1.0f;
+            } else {
+                return Float.NaN;
+            }
+        } else {
+            return (value - start) / (stop - start);
+        }
+    }
+
+    static float clamp(float x, float min, float max) {
+        if (x > max) return max;
+        if (x < min) return min;
+        return x;
+    }
+
+    static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    // The least common multiple of two positive ints
+    static int lcm(int a, int b) {
+        int x = a;
+        int y = b;
+        while (y != 0) {
+            final int t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+    static int prevPow2(int n) {
+        n |= n >> 1;
+        n |= n >> 2;
+        n |= n >> 4;
+        n |= n >> 8;
+        n |= n >> 16;
+        return n - (n >> 1);
+    }
+
+    // The power of 2 sample for the scale, at least 1
+    static int calculateSample(int scaleX, int scaleY) {
+        int sample = Math.max(scaleX, scaleY);
+        sample = Math.max(1, sample);
+        return prevPow2(sample);
+    }
+
+    // Map s in src to d in dst
+    static void mapRect(RectF src, RectF dst, RectF s, RectF d) {
+        final float sX = src.left;
+        final float sY = src.top;
+        final float dX = dst.left;
+        final float dY = dst.top;
+        final float scaleX = dst.width() / src.width();
+        final float scaleY = dst.height() / src.height();
+        d.set(dX + (s.left - sX) * scaleX,
+                dY + (s.top - sY) * scaleY,
+                dX + (s.right - sX) * scaleX,
+                dY + (s.bottom - sY) * scaleY);
+    }
+
+    static void mapRect(RectF rect, int sample) {
+        rect.left /= sample;
+        rect.top /= sample;
+        rect.right /= sample;
+        rect.bottom /= sample;
+    }
+
+    // The square of the distance from the center of rect to (x, y)
+    static float distance(Rect rect, float x, float y) {
+        final float dx = rect.exactCenterX() - x;
+        final float dy = rect.exactCenterY() - y;
+        return dx * dx + dy * dy;
+    }
+
+    // Get the area in image and the area in window to draw
+    // if the area in window for whole image is dst
+    static void getRectInWindow(RectF dst, int windowWidth, int windowHeight,
+            int imageWidth, int imageHeight, RectF srcActual, RectF dstActual) {
+        dstActual.set(dst);
+        if (dstActual.intersect(0, 0, windowWidth, windowHeight)) {
+            if (dst.equals(dstActual)) {
+                // Still dst
+                srcActual.set(0, 0, imageWidth, imageHeight);
+            } else {
+                srcActual.left = lerp(0.0f, imageWidth,
+                        norm(dst.left, dst.right, dstActual.left));
+                srcActual.right = lerp(0.0f, imageWidth,
+                        norm(dst.left, dst.right, dstActual.right));
+                srcActual.top = lerp(0.0f, imageHeight,
+                        norm(dst.top, dst.bottom, dstActual.top));
+                srcActual.bottom = lerp(0.0f, imageHeight,
+                        norm(dst.top, dst.bottom, dstActual.bottom));
+            }
+        } else {
+            // Can't be seen, set src and dst empty
+            srcActual.setEmpty();
+            dstActual.setEmpty();
+        }
+    }
+
+    // Move dst by (-dx, -dy), but keep the window covered if dst is larger.
+    // The offsets which can't be applied are stored in remain.
+    static void translate(RectF dst, float dx, float dy,
+            int windowWidth, int windowHeight, float[] remain) {
+        final float dWidth = dst.width();
+        final float dHeight = dst.height();
+
+        if (dWidth > windowWidth) {
+            dst.left -= dx;
+            dst.right -= dx;
+
+            float fixXOffset = dst.left;
+            if (fixXOffset > 0) {
+                dst.left -= fixXOffset;
+                dst.right -= fixXOffset;
+                remain[0] = -fixXOffset;
+            } else if ((fixXOffset = windowWidth - dst.right) > 0) {
+                dst.left += fixXOffset;
+                dst.right += fixXOffset;
+                remain[0] = fixXOffset;
+            } else {
+                remain[0] = 0;
+            }
+        } else {
+            remain[0] = dx;
+        }
+        if (dHeight > windowHeight) {
+            dst.top -= dy;
+            dst.bottom -= dy;
+
+            float fixYOffset = dst.top;
+            if (fixYOffset > 0) {
+                dst.top -= fixYOffset;
+                dst.bottom -= fixYOffset;
+                remain[1] = -fixYOffset;
+            } else if ((fixYOffset = windowHeight - dst.bottom) > 0) {
+                dst.top += fixYOffset;
+                dst.bottom += fixYOffset;
+                remain[1] = fixYOffset;
+            } else {
+                remain[1] = 0;
+            }
+        } else {
+            remain[1] = dy;
+        }
+    }
+}
@@ -163,6 +163,14 @@ public abstract class ImageSource {
      */
     public void onAnimatorEnd() {}
 
+    /**
+     * Indicate the area to render when the running animator ends,
+     * {@code src} and {@code dst} are the same as
+     * {@link #draw(Canvas, RectF, RectF)}.
+     * It is a hint to prepare the area before the animator ends.
+     */
+    public void onAnimatorTarget(RectF src, RectF dst) {}
+
     /**
      * Indicate a finger touch the View.
      */
@@ -173,6 +181,14 @@ public abstract class ImageSource {
      */
     public void onTouchEnd() {}
 
+    /**
+     * Indicate the velocity of the window moving on this {@code ImageSource},
+     * in pixels per second in {@code dst} of {@link #draw(Canvas, RectF, RectF)}.
+     * Positive {@code velocityX} means the window moves to right of the image.
+     * It is a hint to load the area the window is moving to.
+     */
+    public void onScrollVelocity(float velocityX, float velocityY) {}
+
     /**
      * Return the width of this {@code ImageSource}.
      * If not ready, do what you wanna do.
@@ -191,6 +207,13 @@ public abstract class ImageSource {
      */
     public abstract void draw(Canvas canvas, RectF src, RectF dst);
 
+    /**
+     * Return the bytes of {@code Bitmap}s this {@code ImageSource} holds now.
+     */
+    public long getMemoryUsage() {
+        return 0;
+    }
+
     /**
      * Recycle this {@code ImageSource}.
      */
@@ -27,10 +27,11 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.PixelFormat;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
-import android.support.annotation.CheckResult;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -40,6 +41,7 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 import android.view.animation.Interpolator;
 
 import java.lang.annotation.Retention;
@@ -61,6 +63,9 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
     private static final float MAX_SCALE = 8.0f;
     private static final float MIN_SCALE = 1.0f / 8.0f;
 
+    // Scroll events with longer interval are not continuous
+    private static final long MAX_SCROLL_INTERVAL = 100;
+
     private static final Interpolator FAST_SLOW_INTERPOLATOR = new LinearOutSlowInInterpolator();
 
     @Orientation
@@ -109,7 +114,31 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
 
     private ImageInitListener mImageInitListener;
 
+    // The velocity of window moving on image, for ImageSource to preload
+    private float mScrollVelocityX;
+    private float mScrollVelocityY;
+    private long mLastScrollTime;
+
+    // Set by the parent, false if the user can't see this view
+    private boolean mVisibleHint = true;
+    // Check the visibility before every frame, parents like ViewPager
+    // might move this view out of window without drawing it
+    private final ViewTreeObserver.OnPreDrawListener mOnPreDrawListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    updateImageVisible();
+                    return true;
+                }
+            };
+
     private final PointF mTempPointF = new PointF();
+    private final Rect mTempRect = new Rect();
+    private final RectF mTempRectF1 = new RectF();
+    private final RectF mTempRectF2 = new RectF();
+    private final RectF mTempRectF3 = new RectF();
+    // The offsets translate() can't apply
+    private final float[] mTempRemain = new float[2];
     // The dump drawable to call
     // scheduleDrawable and unscheduleDrawable.
     private Drawable mDumpDrawable;
@@ -131,6 +160,31 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
 
     private void init(Context context) {
         mGestureRecognizer = new GestureRecognizer(context, this);
+        MemoryTrimmer.register(context);
+        TileMemoryBudget.getInstance().init(context);
+    }
+
+    /**
+     * Hint whether the user can see this view, {@code true} as default.
+     * For example, call it in {@code Fragment.setUserVisibleHint()}
+     * in {@code ViewPager}. Invisible images release tiles first
+     * when tiles take too much memory.
+     */
+    public void setVisibleHint(boolean visibleHint) {
+        mVisibleHint = visibleHint;
+        updateImageVisible();
+    }
+
+    // Attached, VISIBLE, hinted visible and in window
+    private boolean isImageVisible() {
+        return ViewCompat.isAttachedToWindow(this) && getVisibility() == VISIBLE
+                && mVisibleHint && getGlobalVisibleRect(mTempRect);
+    }
+
+    private void updateImageVisible() {
+        if (mImage != null) {
+            mImage.setVisible(isImageVisible());
+        }
     }
 
     public void setImageInitListener(ImageInitListener imageInitListener) {
@@ -165,8 +219,8 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         mMinScale = Math.min(MIN_SCALE, fitScale);
 
         final float[] scaleArray = mScaleArray;
-        scaleArray[0] = clamp(widthScale, mMinScale, mMaxScale);
-        scaleArray[1] = clamp(heightScale, mMinScale, mMaxScale);
+        scaleArray[0] = ImageMath.clamp(widthScale, mMinScale, mMaxScale);
+        scaleArray[1] = ImageMath.clamp(heightScale, mMinScale, mMaxScale);
         scaleArray[2] = 1.0f;
         Arrays.sort(scaleArray);
     }
@@ -217,7 +271,7 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         }
 
         final float oldScale = mScale;
-        mScale = clamp(oldScale, mMinScale, mMaxScale);
+        mScale = ImageMath.clamp(oldScale, mMinScale, mMaxScale);
         if (oldScale == mScale) {
             return;
         }
@@ -359,47 +413,10 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
             return;
         }
 
-        final float remainX;
-        final float remainY;
-
-        if (dWidth > wWidth) {
-            dst.left -= dx;
-            dst.right -= dx;
-
-            float fixXOffset = dst.left;
-            if (fixXOffset > 0) {
-                dst.left -= fixXOffset;
-                dst.right -= fixXOffset;
-                remainX = -fixXOffset;
-            } else if ((fixXOffset = wWidth - dst.right) > 0) {
-                dst.left += fixXOffset;
-                dst.right += fixXOffset;
-                remainX = fixXOffset;
-            } else {
-                remainX = 0;
-            }
-        } else {
-            remainX = dx;
-        }
-        if (dHeight > wHeight) {
-            dst.top -= dy;
-            dst.bottom -= dy;
-
-            float fixYOffset = dst.top;
-            if (fixYOffset > 0) {
-                dst.top -= fixYOffset;
-                dst.bottom -= fixYOffset;
-                remainY = -fixYOffset;
-            } else if ((fixYOffset = wHeight - dst.bottom) > 0) {
-                dst.top += fixYOffset;
-                dst.bottom += fixYOffset;
-                remainY = fixYOffset;
-            } else {
-                remainY = 0;
-            }
-        } else {
-            remainY = dy;
-        }
+        final float[] remain = mTempRemain;
+        ImageMath.translate(dst, dx, dy, wWidth, wHeight, remain);
+        final float remainX = remain[0];
+        final float remainY = remain[1];
 
         // Check requestDisallowInterceptTouchEvent
         // Don't call requestDisallowInterceptTouchEvent when animated
@@ -430,7 +447,7 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
             return;
         }
 
-        scale = clamp(scale, mMinScale, mMaxScale);
+        scale = ImageMath.clamp(scale, mMinScale, mMaxScale);
         if (mScale == scale) {
             return;
         }
@@ -537,7 +554,7 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         if (image != null) {
             image.setCallback(this);
             if (ViewCompat.isAttachedToWindow(this)) {
-                image.setVisible(getVisibility() == VISIBLE);
+                image.setVisible(isImageVisible());
             }
             image.setWindowSize(mWindowWidth, mWindowHeight);
             if (mMaxBitmapSize != 0) {
@@ -568,6 +585,15 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         return mImage;
     }
 
+    /**
+     * Return the bytes of {@code Bitmap}s held for the image of this view.
+     *
+     * @see TileMemoryBudget#getSize()
+     */
+    public long getMemoryUsage() {
+        return mImage != null ? mImage.getMemoryUsage() : 0;
+    }
+
     @Override
     public void onImageReady(@NonNull ImageSource who) {
         if (who != mImage) {
@@ -645,34 +671,17 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
     }
 
     private void applyRectInWindow() {
-        final RectF dst = mDst;
-        final RectF dstActual = mDstActual;
-        final RectF srcActual = mSrcActual;
-
-        dstActual.set(dst);
-        if (dstActual.intersect(0, 0, mWindowWidth, mWindowHeight)) {
-            if (dst.equals(dstActual)) {
-                // Still dst
-                srcActual.set(0, 0, mImageWidth, mImageHeight);
-            } else {
-                srcActual.left = lerp(0.0f, mImageWidth,
-                        norm(dst.left, dst.right, dstActual.left));
-                srcActual.right = lerp(0.0f, mImageWidth,
-                        norm(dst.left, dst.right, dstActual.right));
-                srcActual.top = lerp(0.0f, mImageHeight,
-                        norm(dst.top, dst.bottom, dstActual.top));
-                srcActual.bottom = lerp(0.0f, mImageHeight,
-                        norm(dst.top, dst.bottom, dstActual.bottom));
-            }
-        } else {
-            // Can't be seen, set src and dst empty
-            srcActual.setEmpty();
-            dstActual.setEmpty();
-        }
-
+        getRectInWindow(mDst, mSrcActual, mDstActual);
         mRectDirty = false;
     }
 
+    // Get the area in image and the area in view to draw
+    // if the area in view for whole image is dst
+    private void getRectInWindow(RectF dst, RectF srcActual, RectF dstActual) {
+        ImageMath.getRectInWindow(dst, mWindowWidth, mWindowHeight,
+                mImageWidth, mImageHeight, srcActual, dstActual);
+    }
+
     private int getMaxBitmapSize(Canvas canvas) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             int maxSize = Math.min(canvas.getMaximumBitmapWidth(), canvas.getMaximumBitmapHeight());
@@ -720,22 +729,20 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
     @Override
     public void setVisibility(int visibility) {
         super.setVisibility(visibility);
-        if (mImage != null) {
-            mImage.setVisible(ViewCompat.isAttachedToWindow(this) && visibility == VISIBLE);
-        }
+        updateImageVisible();
     }
 
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        if (mImage != null) {
-            mImage.setVisible(getVisibility() == VISIBLE);
-        }
+        getViewTreeObserver().addOnPreDrawListener(mOnPreDrawListener);
+        updateImageVisible();
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        getViewTreeObserver().removeOnPreDrawListener(mOnPreDrawListener);
         if (mImage != null) {
             mImage.setVisible(false);
         }
@@ -754,9 +761,19 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         return true;
     }
 
+    private void setScrollVelocity(float velocityX, float velocityY) {
+        mScrollVelocityX = velocityX;
+        mScrollVelocityY = velocityY;
+        if (mImage != null) {
+            mImage.onScrollVelocity(velocityX, velocityY);
+        }
+    }
+
     @Override
     public void onDown() {
         cancelAllAnimator();
+        mLastScrollTime = 0;
+        setScrollVelocity(0.0f, 0.0f);
 
         if (mImage != null) {
             mImage.onTouchStart();
@@ -795,6 +812,18 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         mTempPointF.set(dx, dy);
         transformDistance(mTempPointF);
         translate(mTempPointF.x, mTempPointF.y);
+
+        // Update scroll velocity
+        final long now = SystemClock.uptimeMillis();
+        final long interval = now - mLastScrollTime;
+        mLastScrollTime = now;
+        if (interval > 0 && interval <= MAX_SCROLL_INTERVAL) {
+            final float velocityX = mTempPointF.x * 1000 / interval;
+            final float velocityY = mTempPointF.y * 1000 / interval;
+            // Smooth it
+            setScrollVelocity(ImageMath.lerp(mScrollVelocityX, velocityX, 0.5f),
+                    ImageMath.lerp(mScrollVelocityY, velocityY, 0.5f));
+        }
     }
 
     @Override
@@ -802,6 +831,8 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         mTempPointF.set(velocityX, velocityY);
         transformDistance(mTempPointF);
         fling(mTempPointF.x, mTempPointF.y);
+        // Fling velocity is the velocity of the content
+        setScrollVelocity(-mTempPointF.x, -mTempPointF.y);
     }
 
     @Override
@@ -819,6 +850,22 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         }
     }
 
+    // Tell ImageSource where the fling ends
+    private void onFlingTarget(float dx, float dy) {
+        if (mImage == null) {
+            return;
+        }
+        final RectF dst = mTempRectF1;
+        final RectF srcActual = mTempRectF2;
+        final RectF dstActual = mTempRectF3;
+        dst.set(mDst);
+        dst.offset(dx, dy);
+        getRectInWindow(dst, srcActual, dstActual);
+        if (!srcActual.isEmpty()) {
+            mImage.onAnimatorTarget(srcActual, dstActual);
+        }
+    }
+
     public void onAnimatorEnd() {
         --mAnimating;
 
@@ -892,7 +939,7 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
         @Override
         public void onAnimationUpdate(ValueAnimator animator) {
             final float value = (Float) getAnimatedValue();
-            mView.setScale(mX, mY, lerp(mStartScale, mEndScale, value));
+            mView.setScale(mX, mY, ImageMath.lerp(mStartScale, mEndScale, value));
         }
     }
 
@@ -947,6 +994,9 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
 
             setDuration(Math.max(durationX, durationY));
             start();
+
+            // The image moves mDx and mDy at the end
+            mView.onFlingTarget(mDx, mDy);
         }
 
         @Override
@@ -1031,35 +1081,6 @@ public class LargeImageView extends View implements ImageSource.Callback, Gestur
     }
 
 
-    ////////////////////
-    // Math function
-    ////////////////////
-
-    @CheckResult
-    private static float lerp(float start, float stop, float amount) {
-        return start + (stop - start) * amount;
-    }
-
-    @CheckResult
-    private static float norm(float start, float stop, float value) {
-        if (stop == start) {
-            if (stop == value) {
-                return 1.0f;
-            } else {
-                return Float.NaN;
-            }
-        } else {
-            return (value - start) / (stop - start);
-        }
-    }
-
-    @CheckResult
-    private static float clamp(float x, float min, float max) {
-        if (x > max) return max;
-        if (x < min) return min;
-        return x;
-    }
-
     // The dump drawable to call scheduleDrawable and unscheduleDrawable.
     private class DumpDrawable extends Drawable {
         @Override
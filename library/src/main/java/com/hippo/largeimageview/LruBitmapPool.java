@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link BitmapPool} groups {@code Bitmap}s by size and config.
+ * The total bytes of {@code Bitmap}s is limited,
+ * the least recently put ones are recycled first.
+ */
+public class LruBitmapPool implements BitmapPool {
+
+    private final int mMaxSize;
+    private int mSize;
+
+    // Bitmaps in each bucket, key is from size and config
+    private final LongSparseArray<List<Bitmap>> mBuckets = new LongSparseArray<>();
+    // All Bitmaps, from the least recently put
+    private final List<Bitmap> mBitmaps = new ArrayList<>();
+
+    /**
+     * @param maxSize the max total bytes of {@code Bitmap}s in the pool
+     */
+    public LruBitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Return the max total bytes of {@code Bitmap}s in the pool.
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Return the total bytes of {@code Bitmap}s in the pool.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+
+    static int getBitmapSize(Bitmap bitmap) {
+        // getByteCount() is added in API 12
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Nullable
+    @Override
+    public synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        final List<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mBitmaps.remove(bitmap);
+        mSize -= getBitmapSize(bitmap);
+        return bitmap;
+    }
+
+    @Override
+    public void put(@NonNull Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        final int size = getBitmapSize(bitmap);
+        if (bitmap.isRecycled() || !bitmap.isMutable() || config == null || size > mMaxSize) {
+            // Can't reuse it
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            final long key = getKey(bitmap.getWidth(), bitmap.getHeight(), config);
+            List<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.add(bitmap);
+            mBitmaps.add(bitmap);
+            mSize += size;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Recycle the least recently put {@code Bitmap}s
+     * until the total bytes is not more than {@code maxSize}.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mBitmaps.isEmpty()) {
+            final Bitmap bitmap = mBitmaps.remove(0);
+            final Bitmap.Config config = bitmap.getConfig();
+            final List<Bitmap> bucket = mBuckets.get(getKey(bitmap.getWidth(), bitmap.getHeight(), config));
+            if (bucket != null) {
+                bucket.remove(bitmap);
+            }
+            mSize -= getBitmapSize(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public void clear() {
+        trimToSize(0);
+    }
+}
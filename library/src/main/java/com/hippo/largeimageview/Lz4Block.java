@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A pure Java codec of LZ4 block format. It's fast rather than small,
+ * for tile pixels kept in memory.
+ * <p>
+ * A block is sequences of a token, literals, a 2 bytes offset and a match.
+ * The high 4 bits of token are literal length, the low 4 bits are match length - 4.
+ * 15 means more length bytes follow, until a byte isn't 255.
+ * The last sequence has only literals.
+ */
+final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    // The last 5 bytes are always literals
+    private static final int LAST_LITERALS = 5;
+    // No match starts in the last 12 bytes
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_LOG = 14;
+    // Skip faster in incompressible data
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4Block() {}
+
+    /**
+     * Return the max length of the compressed data of {@code length} bytes.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress {@code src} to {@code dst}, return the compressed length.
+     * {@code dst} must have {@link #maxCompressedLength(int)} bytes from {@code dstOffset}.
+     */
+    static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+        final int srcEnd = srcOffset + srcLength;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        int dp = dstOffset;
+        int anchor = srcOffset;
+
+        if (srcLength >= MF_LIMIT + 1) {
+            final int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, srcOffset);
+            int ip = srcOffset + 1;
+            int searchCount = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                final int h = hash(readInt(src, ip));
+                int ref = table[h];
+                table[h] = ip;
+                if (ip - ref > MAX_OFFSET || readInt(src, ref) != readInt(src, ip)) {
+                    ip += searchCount++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searchCount = 1 << SKIP_TRIGGER;
+
+                // Extend backward
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    --ip;
+                    --ref;
+                }
+                // Extend forward
+                int length = MIN_MATCH;
+                while (ip + length < matchLimit && src[ip + length] == src[ref + length]) {
+                    ++length;
+                }
+
+                dp = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, dp);
+                ip += length;
+                anchor = ip;
+                if (ip - 2 > srcOffset && ip < mfLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+
+        // Last literals
+        return writeLiterals(src, anchor, srcEnd - anchor, dst, dp) - dstOffset;
+    }
+
+    /**
+     * Decompress {@code src} to {@code dst}, return the decompressed length.
+     *
+     * @throws IllegalArgumentException if the data is malformed
+     *         or longer than {@code dstLength}
+     */
+    static int decompress(byte[] src, int srcOffset, int srcLength,
+            byte[] dst, int dstOffset, int dstLength) {
+        final int srcEnd = srcOffset + srcLength;
+        final int dstEnd = dstOffset + dstLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        while (ip < srcEnd) {
+            final int token = src[ip++] & 0xff;
+
+            // Literals
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IllegalArgumentException("Malformed literal length");
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new IllegalArgumentException("Malformed literals");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == srcEnd) {
+                // The last sequence
+                break;
+            }
+
+            // Match
+            if (srcEnd - ip < 2) {
+                throw new IllegalArgumentException("Malformed offset");
+            }
+            final int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            final int ref = op - offset;
+            if (offset == 0 || ref < dstOffset) {
+                throw new IllegalArgumentException("Malformed offset");
+            }
+            int matchLength = token & 0x0f;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IllegalArgumentException("Malformed match length");
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IllegalArgumentException("Malformed match");
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+            } else {
+                // Overlapped, repeat the pattern
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+
+        return op - dstOffset;
+    }
+
+    private static int hash(int i) {
+        return (i * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8)
+                | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength,
+            int offset, int matchLength, byte[] dst, int dp) {
+        final int tokenPosition = dp++;
+        final int matchToken = matchLength - MIN_MATCH;
+        int token = Math.min(matchToken, 15);
+        if (literalLength >= 15) {
+            token |= 15 << 4;
+            dp = writeLength(dst, dp, literalLength - 15);
+        } else {
+            token |= literalLength << 4;
+        }
+        System.arraycopy(src, literalOffset, dst, dp, literalLength);
+        dp += literalLength;
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+        if (matchToken >= 15) {
+            dp = writeLength(dst, dp, matchToken - 15);
+        }
+        dst[tokenPosition] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLiterals(byte[] src, int offset, int length, byte[] dst, int dp) {
+        if (length >= 15) {
+            dst[dp++] = (byte) (15 << 4);
+            dp = writeLength(dst, dp, length - 15);
+        } else {
+            dst[dp++] = (byte) (length << 4);
+        }
+        System.arraycopy(src, offset, dst, dp, length);
+        return dp + length;
+    }
+}
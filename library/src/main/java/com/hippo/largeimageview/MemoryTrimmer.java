@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Releases tiles and pooled {@code Bitmap}s when the system is short of memory.
+ * <p>
+ * {@link LargeImageView} registers it, call {@link #register(Context)}
+ * if {@link TiledBitmapSource} is used without {@code LargeImageView}.
+ * It's registered once per process.
+ * <ul>
+ * <li>{@code TRIM_MEMORY_RUNNING_MODERATE}: halve {@link SharedTileCache},
+ * {@link CompressedTileCache}, the default {@link BitmapPool} and tile caches</li>
+ * <li>{@code TRIM_MEMORY_RUNNING_LOW} or {@code TRIM_MEMORY_UI_HIDDEN}:
+ * clear them, keep the visible tiles. Invisible images release full tiles too.</li>
+ * <li>{@code TRIM_MEMORY_BACKGROUND} and {@code onLowMemory()}:
+ * release all tiles, they are decoded again when drawn</li>
+ * </ul>
+ */
+public final class MemoryTrimmer {
+
+    // ComponentCallbacks2 is added in ICE_CREAM_SANDWICH,
+    // the class implementing it is only loaded after checking SDK_INT
+    private static ComponentCallbacks sCallbacks;
+
+    // All not recycled TiledBitmapSource, they might be created in any thread
+    private static final Set<TiledBitmapSource> sSources =
+            Collections.newSetFromMap(new WeakHashMap<TiledBitmapSource, Boolean>());
+
+    private MemoryTrimmer() {}
+
+    /**
+     * Listen to memory trim events of the process.
+     * Only the first call works. It does nothing before ICE_CREAM_SANDWICH.
+     */
+    public static synchronized void register(@NonNull Context context) {
+        if (sCallbacks != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        sCallbacks = new Callbacks();
+        context.getApplicationContext().registerComponentCallbacks(sCallbacks);
+    }
+
+    static void add(TiledBitmapSource source) {
+        synchronized (sSources) {
+            sSources.add(source);
+        }
+    }
+
+    static void remove(TiledBitmapSource source) {
+        synchronized (sSources) {
+            sSources.remove(source);
+        }
+    }
+
+    /**
+     * Release memory as the level of {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * Must be called in UI thread.
+     */
+    public static void trimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return;
+        }
+
+        // Tiles released by sources go to SharedTileCache and BitmapPool,
+        // so trim sources first
+        final List<TiledBitmapSource> sources;
+        synchronized (sSources) {
+            sources = new ArrayList<>(sSources);
+        }
+        for (TiledBitmapSource source : sources) {
+            source.trimMemory(level);
+        }
+
+        final SharedTileCache cache = SharedTileCache.getInstance();
+        final CompressedTileCache compressedCache = CompressedTileCache.getInstance();
+        final BitmapPool pool = TiledBitmapSource.getDefaultBitmapPool();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.clear();
+            compressedCache.clear();
+            pool.clear();
+        } else {
+            cache.trimToSize(cache.getSize() / 2);
+            compressedCache.trimToSize(compressedCache.getSize() / 2);
+            if (pool instanceof LruBitmapPool) {
+                final LruBitmapPool lruPool = (LruBitmapPool) pool;
+                lruPool.trimToSize(lruPool.getSize() / 2);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class Callbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+    }
+}
@@ -22,10 +22,28 @@ package com.hippo.largeimageview;
 
 import android.graphics.Bitmap;
 import android.graphics.Rect;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 public abstract class RegionDecoder {
 
+    private volatile BitmapPool mBitmapPool;
+
+    /**
+     * Set the {@link BitmapPool} to decode regions into reused {@code Bitmap}s.
+     */
+    public void setBitmapPool(@Nullable BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Return the {@link BitmapPool} to decode regions into reused {@code Bitmap}s.
+     */
+    @Nullable
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     @Nullable
     public Bitmap decodeRegion(Rect rect, int sample) {
         try {
@@ -39,6 +57,34 @@ public abstract class RegionDecoder {
 
     public abstract int getHeight();
 
+    /**
+     * Return the {@code Bitmap.Config} of decoded regions.
+     * It's used to estimate the bytes of tiles.
+     */
+    @NonNull
+    public Bitmap.Config getConfig() {
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Return the preferred alignment of tile boundaries in image pixels.
+     * If the decoder decodes whole blocks, like JPEG MCUs, tiles cut at
+     * multiples of the block size don't decode the same block twice.
+     * 1 for no alignment.
+     */
+    public int getPreferredAlignment() {
+        return 1;
+    }
+
+    /**
+     * Return the max count of {@link #decodeRegion(Rect, int)} calls
+     * which could run at the same time, the others wait.
+     * 1 as default.
+     */
+    public int getMaxConcurrency() {
+        return 1;
+    }
+
     @Nullable
     protected abstract Bitmap decodeRegionInternal(Rect rect, int sample);
 
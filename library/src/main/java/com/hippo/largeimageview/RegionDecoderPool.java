@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link RegionDecoder} holds several {@code RegionDecoder}s
+ * of the same image, so regions can be decoded at the same time.
+ * <p>
+ * {@link android.graphics.BitmapRegionDecoder} decodes regions one by one,
+ * new {@code RegionDecoder}s are created by the {@link Factory}
+ * when all the others are busy, until the max size is reached.
+ * <p>
+ * It is safe to call {@link #recycle()} when regions are being decoded,
+ * the busy {@code RegionDecoder}s are recycled when they are done.
+ */
+public class RegionDecoderPool extends RegionDecoder {
+
+    private static final String LOG_TAG = RegionDecoderPool.class.getSimpleName();
+
+    /**
+     * The default max size, the count of CPU cores, but no more than 4.
+     */
+    public static final int DEFAULT_MAX_SIZE =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private final Factory mFactory;
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final int mAlignment;
+    private int mMaxSize;
+
+    // Guarded by this
+    private final List<RegionDecoder> mIdleDecoders = new ArrayList<>();
+    // The count of created and not recycled RegionDecoder
+    private int mSize;
+    private boolean mRecycled;
+
+    /**
+     * @param decoder the first {@code RegionDecoder}
+     * @param factory create more {@code RegionDecoder} for the same image
+     * @param maxSize the max count of {@code RegionDecoder}
+     */
+    public RegionDecoderPool(@NonNull RegionDecoder decoder, @NonNull Factory factory, int maxSize) {
+        mFactory = factory;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mConfig = decoder.getConfig();
+        mAlignment = decoder.getPreferredAlignment();
+        mMaxSize = Math.max(1, maxSize);
+        mIdleDecoders.add(decoder);
+        mSize = 1;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public int getPreferredAlignment() {
+        return mAlignment;
+    }
+
+    // It's reduced if no more RegionDecoder could be created
+    @Override
+    public synchronized int getMaxConcurrency() {
+        return mMaxSize;
+    }
+
+    // Return null if recycled
+    @Nullable
+    private RegionDecoder obtain() {
+        for (;;) {
+            synchronized (this) {
+                for (;;) {
+                    if (mRecycled) {
+                        return null;
+                    }
+                    final int size = mIdleDecoders.size();
+                    if (size > 0) {
+                        return mIdleDecoders.remove(size - 1);
+                    }
+                    if (mSize < mMaxSize) {
+                        // Take the place, create it outside the lock
+                        ++mSize;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+
+            RegionDecoder decoder;
+            try {
+                decoder = mFactory.newRegionDecoder();
+            } catch (Throwable t) {
+                decoder = null;
+            }
+
+            synchronized (this) {
+                if (decoder == null) {
+                    // Don't try again, wait for a busy one
+                    --mSize;
+                    mMaxSize = mSize;
+                    Log.w(LOG_TAG, "Can't create more RegionDecoder, keep " + mSize);
+                    continue;
+                }
+                if (!mRecycled) {
+                    return decoder;
+                }
+                --mSize;
+            }
+
+            // Recycled when creating
+            decoder.recycle();
+            return null;
+        }
+    }
+
+    private void release(RegionDecoder decoder) {
+        synchronized (this) {
+            if (!mRecycled) {
+                mIdleDecoders.add(decoder);
+                notify();
+                return;
+            }
+            --mSize;
+        }
+        decoder.recycle();
+    }
+
+    @Override
+    protected Bitmap decodeRegionInternal(Rect rect, int sample) {
+        final RegionDecoder decoder = obtain();
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            decoder.setBitmapPool(getBitmapPool());
+            return decoder.decodeRegion(rect, sample);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    @Override
+    public void recycle() {
+        final List<RegionDecoder> decoders;
+        synchronized (this) {
+            if (mRecycled) {
+                return;
+            }
+            mRecycled = true;
+            decoders = new ArrayList<>(mIdleDecoders);
+            mSize -= mIdleDecoders.size();
+            mIdleDecoders.clear();
+            notifyAll();
+        }
+        for (RegionDecoder decoder : decoders) {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Create {@code RegionDecoder} for the image of the pool.
+     */
+    public interface Factory {
+
+        /**
+         * Return a new {@code RegionDecoder}, or {@code null} if failed.
+         * Called in non-UI thread.
+         */
+        @Nullable
+        RegionDecoder newRegionDecoder();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache for tiles, shared by all {@link TiledBitmapSource}
+ * with image key. When a {@code TiledBitmapSource} is recycled or recycles
+ * tiles, the tiles are kept here. A new {@code TiledBitmapSource}
+ * with the same image key takes them instead of decoding again.
+ * <p>
+ * A tile belongs to either a {@code TiledBitmapSource} or the cache,
+ * so the {@code Bitmap} is never shared.
+ *
+ * @see TiledBitmapSource#setImageKey(String)
+ */
+public final class SharedTileCache {
+
+    private static final SharedTileCache INSTANCE = new SharedTileCache();
+
+    private int mMaxSize;
+    private int mSize;
+    // From the least recently put
+    private final LinkedHashMap<String, Bitmap> mMap = new LinkedHashMap<>(0, 0.75f, true);
+
+    private SharedTileCache() {
+        // 1/16 of max memory as default
+        final long maxSize = Runtime.getRuntime().maxMemory() / 16;
+        mMaxSize = (int) Math.min(maxSize, Integer.MAX_VALUE);
+    }
+
+    @NonNull
+    public static SharedTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static String getKey(String imageKey, int sample, Rect rect) {
+        return imageKey + '_' + sample + '_' + rect.left + '_' + rect.top
+                + '_' + rect.right + '_' + rect.bottom;
+    }
+
+    /**
+     * Set the max total bytes of tiles. 0 to disable the cache.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Return the max total bytes of tiles.
+     */
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Return the total bytes of tiles.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Put a tile to the cache, the cache owns the {@code Bitmap} now.
+     */
+    synchronized void put(@NonNull String imageKey, int sample, @NonNull Rect rect,
+            @NonNull Bitmap bitmap) {
+        final int size = LruBitmapPool.getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            release(bitmap);
+            return;
+        }
+
+        final Bitmap old = mMap.put(getKey(imageKey, sample, rect), bitmap);
+        if (old != null) {
+            mSize -= LruBitmapPool.getBitmapSize(old);
+            release(old);
+        }
+        mSize += size;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Take a tile from the cache, the caller owns the {@code Bitmap} now.
+     */
+    @Nullable
+    synchronized Bitmap take(@NonNull String imageKey, int sample, @NonNull Rect rect) {
+        final Bitmap bitmap = mMap.remove(getKey(imageKey, sample, rect));
+        if (bitmap != null) {
+            mSize -= LruBitmapPool.getBitmapSize(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Release the least recently put tiles
+     * until the total bytes is not more than {@code maxSize}.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Map.Entry<String, Bitmap>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next().getValue();
+            iterator.remove();
+            mSize -= LruBitmapPool.getBitmapSize(bitmap);
+            release(bitmap);
+        }
+    }
+
+    /**
+     * Release all tiles.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private static void release(Bitmap bitmap) {
+        TiledBitmapSource.getDefaultBitmapPool().put(bitmap);
+    }
+}
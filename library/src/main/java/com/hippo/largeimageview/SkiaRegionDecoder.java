@@ -24,15 +24,27 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Rect;
+import android.os.Build;
 
 public class SkiaRegionDecoder extends RegionDecoder {
 
     private BitmapRegionDecoder mDecoder;
     private final Bitmap.Config mConfig;
+    private final int mAlignment;
+    private volatile boolean mRoundUp;
 
     public SkiaRegionDecoder(BitmapRegionDecoder decoder, Bitmap.Config config) {
+        this(decoder, config, 1);
+    }
+
+    /**
+     * @param alignment the preferred alignment of tile boundaries,
+     *                  like the MCU size of JPEG
+     */
+    public SkiaRegionDecoder(BitmapRegionDecoder decoder, Bitmap.Config config, int alignment) {
         mDecoder = decoder;
         mConfig = config;
+        mAlignment = Math.max(1, alignment);
     }
 
     @Override
@@ -45,17 +57,63 @@ public class SkiaRegionDecoder extends RegionDecoder {
         return mDecoder.getHeight();
     }
 
+    @Override
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public int getPreferredAlignment() {
+        return mAlignment;
+    }
+
     @Override
     protected Bitmap decodeRegionInternal(Rect rect, int sample) {
         final BitmapRegionDecoder decoder = mDecoder;
-        if (decoder != null) {
-            final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = sample;
-            options.inPreferredConfig = mConfig;
-            return decoder.decodeRegion(rect, options);
-        } else {
+        if (decoder == null) {
             return null;
         }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = mConfig;
+        // Mutable bitmap could be put into BitmapPool
+        options.inMutable = true;
+
+        // BitmapRegionDecoder supports inBitmap since JELLY_BEAN
+        final BitmapPool pool = getBitmapPool();
+        if (pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            final int width = getSampledSize(rect.width(), sample);
+            final int height = getSampledSize(rect.height(), sample);
+            final Bitmap inBitmap = pool.get(width, height, mConfig);
+            if (inBitmap != null) {
+                options.inBitmap = inBitmap;
+                try {
+                    final Bitmap bitmap = decoder.decodeRegion(rect, options);
+                    if (bitmap != inBitmap) {
+                        pool.put(inBitmap);
+                    }
+                    return bitmap;
+                } catch (IllegalArgumentException e) {
+                    // Can't reuse the bitmap, decode a new one
+                    inBitmap.recycle();
+                    options.inBitmap = null;
+                }
+            }
+        }
+
+        final Bitmap bitmap = decoder.decodeRegion(rect, options);
+        if (bitmap != null && rect.width() % sample != 0) {
+            // Some decoders round up sampled size, like libjpeg
+            mRoundUp = bitmap.getWidth() > rect.width() / sample;
+        }
+        return bitmap;
+    }
+
+    // The size of the bitmap decoded from the region
+    private int getSampledSize(int size, int sample) {
+        final int sampledSize = mRoundUp ? (size + sample - 1) / sample : size / sample;
+        return Math.max(1, sampledSize);
     }
 
     @Override
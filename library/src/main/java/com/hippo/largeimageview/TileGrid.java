@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tiles of an image in one sample. Tiles are {@code stepX} x {@code stepY}
+ * image pixels, from left to right, then top to bottom.
+ * <p>
+ * Only the tiles put in are stored, and the tiles in an area
+ * are found by division, so the cost doesn't depend on the image size.
+ * <p>
+ * Tiles are kept in sorted arrays like {@link android.util.SparseArray},
+ * but it doesn't need the Android runtime, so it works in JVM benchmarks.
+ */
+final class TileGrid<T> {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStepX;
+    private final int mStepY;
+    private final int mColumns;
+    private final int mRows;
+    private final Factory<T> mFactory;
+
+    // Sorted indexes and their tiles
+    private int[] mKeys = new int[8];
+    private Object[] mValues = new Object[8];
+    private int mSize;
+
+    /**
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param step the width and the height of tiles in image pixels
+     */
+    public TileGrid(int width, int height, int step) {
+        this(width, height, step, step);
+    }
+
+    /**
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param stepX the width of tiles in image pixels
+     * @param stepY the height of tiles in image pixels
+     */
+    public TileGrid(int width, int height, int stepX, int stepY) {
+        this(width, height, stepX, stepY, null);
+    }
+
+    /**
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param stepX the width of tiles in image pixels
+     * @param stepY the height of tiles in image pixels
+     * @param factory creates the tiles for {@link #obtain(int)}
+     */
+    public TileGrid(int width, int height, int stepX, int stepY, Factory<T> factory) {
+        mFactory = factory;
+        mWidth = width;
+        mHeight = height;
+        mStepX = stepX;
+        mStepY = stepY;
+        mColumns = (width + stepX - 1) / stepX;
+        mRows = (height + stepY - 1) / stepY;
+    }
+
+    public int getStepX() {
+        return mStepX;
+    }
+
+    public int getStepY() {
+        return mStepY;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getIndex(int column, int row) {
+        return row * mColumns + column;
+    }
+
+    public int getColumn(int index) {
+        return index % mColumns;
+    }
+
+    public int getRow(int index) {
+        return index / mColumns;
+    }
+
+    /**
+     * Get the area of the tile in the image.
+     */
+    public void getRect(int index, Rect rect) {
+        final int x = (index % mColumns) * mStepX;
+        final int y = (index / mColumns) * mStepY;
+        rect.set(x, y, Math.min(x + mStepX, mWidth), Math.min(y + mStepY, mHeight));
+    }
+
+    /**
+     * Get the columns and rows of the tiles intersecting the area.
+     * {@code range.right} and {@code range.bottom} are exclusive.
+     * Return {@code false} if no tile intersects the area.
+     */
+    public boolean getRange(RectF area, Rect range) {
+        final float stepX = mStepX;
+        final float stepY = mStepY;
+        range.set(Math.max(0, (int) Math.floor(area.left / stepX)),
+                Math.max(0, (int) Math.floor(area.top / stepY)),
+                Math.min(mColumns, (int) Math.ceil(area.right / stepX)),
+                Math.min(mRows, (int) Math.ceil(area.bottom / stepY)));
+        return range.left < range.right && range.top < range.bottom;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        final int i = Arrays.binarySearch(mKeys, 0, mSize, index);
+        return i >= 0 ? (T) mValues[i] : null;
+    }
+
+    /**
+     * Get the tile, create and put it by the factory if it isn't stored.
+     * Return {@code null} if there is no factory and the tile isn't stored.
+     */
+    public T obtain(int index) {
+        T tile = get(index);
+        if (tile == null && mFactory != null) {
+            tile = mFactory.create(this, index);
+            put(index, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Obtain the tiles in the range from {@link #getRange(RectF, Rect)},
+     * add them to the list from left to right, then top to bottom.
+     */
+    public void obtainRange(Rect range, List<T> list) {
+        for (int row = range.top; row < range.bottom; row++) {
+            for (int column = range.left; column < range.right; column++) {
+                final T tile = obtain(getIndex(column, row));
+                if (tile != null) {
+                    list.add(tile);
+                }
+            }
+        }
+    }
+
+    public void put(int index, T tile) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, index);
+        if (i >= 0) {
+            mValues[i] = tile;
+            return;
+        }
+
+        i = ~i;
+        if (mSize == mKeys.length) {
+            final int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        mKeys[i] = index;
+        mValues[i] = tile;
+        ++mSize;
+    }
+
+    public void remove(int index) {
+        final int i = Arrays.binarySearch(mKeys, 0, mSize, index);
+        if (i < 0) {
+            return;
+        }
+        System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+        System.arraycopy(mValues, i + 1, mValues, i, mSize - i - 1);
+        --mSize;
+        mValues[mSize] = null;
+    }
+
+    /**
+     * Return the count of stored tiles.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the index of the i-th stored tile, in ascending order.
+     */
+    public int keyAt(int i) {
+        return mKeys[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T valueAt(int i) {
+        return (T) mValues[i];
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * Evict tiles from the cache, the least recently used first,
+     * until the size is not more than {@code maxSize}. Return the size after it.
+     *
+     * @param cache the tiles in access order, like {@code LinkedHashMap}
+     *              with {@code accessOrder} {@code true}
+     * @param size the size of the cache now
+     */
+    public static <T> int trim(Map<?, T> cache, int size, int maxSize, Evictor<T> evictor) {
+        final Iterator<T> iterator = cache.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final T tile = iterator.next();
+            final int released = evictor.evict(tile);
+            if (released >= 0) {
+                iterator.remove();
+                size -= released;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates the tiles for {@link #obtain(int)}.
+     */
+    interface Factory<T> {
+        T create(TileGrid<T> grid, int index);
+    }
+
+    /**
+     * Evicts the tiles for {@link #trim(Map, int, int, Evictor)}.
+     */
+    interface Evictor<T> {
+        /**
+         * Release the tile, return the size it took.
+         * Return -1 to keep it in the cache.
+         */
+        int evict(T tile);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A process-wide limit of the bytes of tiles held by all {@link TiledBitmapSource}.
+ * Full tiles are included, {@link SharedTileCache}, {@link CompressedTileCache}
+ * and {@link BitmapPool} are not.
+ * <p>
+ * When the limit is exceeded, invisible {@code TiledBitmapSource}s release
+ * all their tiles first, then visible ones release the tiles out of window.
+ * Both go from the least recently drawn source. {@link LargeImageView}
+ * makes its image invisible if it's out of window, like offscreen pages
+ * of {@code ViewPager}, see {@link LargeImageView#setVisibleHint(boolean)}.
+ * The tiles in window of visible sources are never released,
+ * so the total bytes might be over the limit for a while.
+ * <p>
+ * Only touched in UI thread.
+ */
+public final class TileMemoryBudget {
+
+    private static final TileMemoryBudget INSTANCE = new TileMemoryBudget();
+
+    // Tiles take 1/4 of the heap as default
+    private static final int DEFAULT_HEAP_DIVISOR = 4;
+
+    private long mMaxSize;
+    private boolean mMaxSizeSet;
+    private long mSize;
+    // The bytes each TiledBitmapSource holds
+    private final Map<TiledBitmapSource, Long> mUsages = new WeakHashMap<>();
+    private boolean mTrimming;
+
+    private TileMemoryBudget() {
+        mMaxSize = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+    }
+
+    @NonNull
+    public static TileMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Derive the default max size from {@link ActivityManager#getMemoryClass()}.
+     * It does nothing if the max size is set.
+     * {@link LargeImageView} calls it.
+     */
+    public void init(@NonNull Context context) {
+        if (mMaxSizeSet) {
+            return;
+        }
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            mMaxSize = am.getMemoryClass() * 1024L * 1024L / DEFAULT_HEAP_DIVISOR;
+            trim();
+        }
+    }
+
+    /**
+     * Set the max total bytes of tiles of all {@code TiledBitmapSource}.
+     */
+    public void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        mMaxSizeSet = true;
+        trim();
+    }
+
+    /**
+     * Return the max total bytes of tiles of all {@code TiledBitmapSource}.
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Return the total bytes of tiles of all {@code TiledBitmapSource}.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the bytes left before the max size, 0 if it's exceeded.
+     */
+    public long getAvailableSize() {
+        return Math.max(0, mMaxSize - mSize);
+    }
+
+    // Record the bytes the source holds now, then trim if needed
+    void update(TiledBitmapSource source, long size) {
+        mUsages.put(source, size);
+        updateSize();
+        trim();
+    }
+
+    void remove(TiledBitmapSource source) {
+        mUsages.remove(source);
+        updateSize();
+    }
+
+    // Sum again, sources might be collected without remove()
+    private void updateSize() {
+        long size = 0;
+        for (Long usage : mUsages.values()) {
+            size += usage;
+        }
+        mSize = size;
+    }
+
+    private void trim() {
+        if (mTrimming || mSize <= mMaxSize) {
+            return;
+        }
+        // Sources report new size in trimToBudget(), don't trim again
+        mTrimming = true;
+
+        final List<TiledBitmapSource> sources = new ArrayList<>(mUsages.keySet());
+        // The least recently drawn first
+        Collections.sort(sources, new Comparator<TiledBitmapSource>() {
+            @Override
+            public int compare(TiledBitmapSource lhs, TiledBitmapSource rhs) {
+                return compareLong(lhs.getLastDrawTime(), rhs.getLastDrawTime());
+            }
+        });
+        // Invisible sources release all tiles
+        for (TiledBitmapSource source : sources) {
+            if (mSize <= mMaxSize) {
+                break;
+            }
+            if (!source.isVisible()) {
+                source.trimToBudget(mSize - mMaxSize, true);
+            }
+        }
+        // Then visible sources release tiles out of window
+        for (TiledBitmapSource source : sources) {
+            if (mSize <= mMaxSize) {
+                break;
+            }
+            if (source.isVisible()) {
+                source.trimToBudget(mSize - mMaxSize, false);
+            }
+        }
+
+        mTrimming = false;
+    }
+
+    private static int compareLong(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+/**
+ * A snapshot of the counters of a {@link TiledBitmapSource}.
+ * Counters start from the creation of the {@code TiledBitmapSource}.
+ *
+ * @see TiledBitmapSource#getTileMetrics()
+ */
+public final class TileMetrics {
+
+    // The exclusive upper bounds in milliseconds of latency buckets
+    private static final int[] LATENCY_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    /**
+     * The count of buckets in decode latency histograms.
+     *
+     * @see #getLatencyBucketBound(int)
+     */
+    public static final int LATENCY_BUCKET_COUNT = LATENCY_BOUNDS.length + 1;
+
+    int mDecodedCount;
+    int mFailedCount;
+    int mCancelledCount;
+    int mWastedCount;
+    int mEvictedCount;
+    int mHitCount;
+    int mMissCount;
+    long mResidentBytes;
+    int mFallbackTileCount;
+    int mMissingTileCount;
+    final SparseArray<int[]> mDecodeLatency = new SparseArray<>();
+
+    TileMetrics() {}
+
+    /**
+     * Return the exclusive upper bound in milliseconds of the bucket.
+     * The last bucket has no bound, it's {@code Integer.MAX_VALUE}.
+     * The lower bound is the upper bound of previous bucket, or 0.
+     */
+    public static int getLatencyBucketBound(int bucket) {
+        return bucket < LATENCY_BOUNDS.length ? LATENCY_BOUNDS[bucket] : Integer.MAX_VALUE;
+    }
+
+    static int getLatencyBucket(long millis) {
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            if (millis < LATENCY_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BOUNDS.length;
+    }
+
+    /**
+     * Return the count of tiles loaded, full tiles included.
+     */
+    public int getDecodedCount() {
+        return mDecodedCount;
+    }
+
+    /**
+     * Return the count of tiles failed to load.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * Return the count of tile requests dropped before they are done.
+     */
+    public int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    /**
+     * Return the count of tiles loaded but not wanted any more.
+     */
+    public int getWastedCount() {
+        return mWastedCount;
+    }
+
+    /**
+     * Return the count of tiles released by the tile cache for space.
+     */
+    public int getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Return the count of tiles which have bitmaps when they become visible.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Return the count of tiles which need loading when they become visible.
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Return hits / (hits + misses), 0 if no tile has become visible.
+     */
+    public float getHitRate() {
+        final int total = mHitCount + mMissCount;
+        return total == 0 ? 0.0f : (float) mHitCount / total;
+    }
+
+    /**
+     * Return the bytes of tile bitmaps held now, full tiles included.
+     */
+    public long getResidentBytes() {
+        return mResidentBytes;
+    }
+
+    /**
+     * Return the count of tiles of other samples drawn
+     * in the last frame to fill missing tiles.
+     */
+    public int getFallbackTileCount() {
+        return mFallbackTileCount;
+    }
+
+    /**
+     * Return the count of tiles of current sample in window
+     * without bitmaps in the last frame, failed tiles included.
+     * It's -1 if tiles are not created yet.
+     */
+    public int getMissingTileCount() {
+        return mMissingTileCount;
+    }
+
+    /**
+     * Return the samples which have decode latency histograms, in ascending order.
+     */
+    public int[] getSamples() {
+        final int size = mDecodeLatency.size();
+        final int[] samples = new int[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = mDecodeLatency.keyAt(i);
+        }
+        return samples;
+    }
+
+    /**
+     * Return the tile counts in each latency bucket for the sample,
+     * or {@code null} if no tile of the sample is loaded.
+     * Loading from disk cache and scaling down finer tiles are included.
+     *
+     * @see #getLatencyBucketBound(int)
+     */
+    @Nullable
+    public int[] getDecodeLatencyHistogram(int sample) {
+        final int[] histogram = mDecodeLatency.get(sample);
+        return histogram != null ? histogram.clone() : null;
+    }
+}
@@ -20,19 +20,30 @@ package com.hippo.largeimageview;
  * Created by Hippo on 9/28/2016.
  */
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.SparseArray;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A ImageSource to show a large {@link Bitmap} via region decoding.
@@ -41,37 +52,187 @@ public class TiledBitmapSource extends ImageSource {
 
     private static final String LOG_TAG = TiledBitmapSource.class.getSimpleName();
 
+    // The default max size of tile cache is the size of 4 windows
+    private static final int DEFAULT_TILE_CACHE_WINDOWS = 4;
+
+    // The window is expected to move for such seconds
+    // with current velocity when prefetching tiles
+    private static final float PREFETCH_SECONDS = 0.5f;
+    // Prefetch tiles in at most one window away
+    private static final float MAX_PREFETCH_WINDOWS = 1.0f;
+    // The max count of prefetch tasks at the same time
+    private static final int MAX_PREFETCH_TASKS = 2;
+
+    // The max count of missing finer tiles to make a tile from finer tiles,
+    // they are decoded one by one
+    private static final int MAX_MISSING_FINER_TILES = 3;
+
+    // Tile priorities, the smaller the earlier
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_TARGET = 1;
+    private static final int PRIORITY_PREFETCH = 2;
+
+    // Sort tiles by priority, then by distance
+    private static final Comparator<Tile> TILE_PRIORITY_COMPARATOR = new Comparator<Tile>() {
+        @Override
+        public int compare(Tile lhs, Tile rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority < rhs.priority ? -1 : 1;
+            }
+            return Float.compare(lhs.distance, rhs.distance);
+        }
+    };
+
+    // The min count of measured decode calls to estimate decode costs
+    private static final int MIN_DECODE_COST_COUNT = 8;
+
+    private static final TilingPolicy DEFAULT_TILING_POLICY = new DefaultTilingPolicy();
+
+    // For the keys of sources without image key in CompressedTileCache
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private static BitmapPool sDefaultBitmapPool;
+    private static DiskTileCache sDefaultDiskTileCache;
+
     private static class Tile {
+        public int sample;
+        public int index;
         public Rect rect;
         public Bitmap bitmap;
         public boolean loading;
-        public boolean visible;
         public boolean failed;
+        // In pending list, waiting to load
+        public boolean pending;
+        // The last frame in which the tile is wanted
+        public int wantedFrame;
+        // The last frame in which the bitmap is drawn
+        public int drawnFrame = -1;
+        public int priority;
+        public float distance;
+        // The count of LoadTileTask using the bitmap to make coarser tiles
+        public int pinned;
+    }
+
+    // Create the tiles of the sample for TileGrid
+    private static class TileFactory implements TileGrid.Factory<Tile> {
+
+        private final int mSample;
+
+        public TileFactory(int sample) {
+            mSample = sample;
+        }
+
+        @Override
+        public Tile create(TileGrid<Tile> grid, int index) {
+            final Tile tile = new Tile();
+            tile.sample = mSample;
+            tile.index = index;
+            tile.rect = new Rect();
+            grid.getRect(index, tile.rect);
+            tile.wantedFrame = -1;
+            return tile;
+        }
     }
 
     private RegionDecoder mDecoder;
+    // The Executor to run decode tasks
+    private final Executor mExecutor;
+    // The BitmapPool to put useless tiles
+    private BitmapPool mBitmapPool;
+    // The key to share tiles in SharedTileCache, null for not sharing
+    private String mImageKey;
+    // The key in CompressedTileCache if no image key, only used by this source
+    private final String mLocalKey = "#" + sNextId.getAndIncrement();
+    // The disk cache for tiles, only works with image key
+    private DiskTileCache mDiskTileCache;
     // The width of parent view
     private int mWindowWidth;
     // The height of parent view
     private int mWindowHeight;
-    // The max width and height for tile
-    private int mMaxTileSize;
+    // The max width and height for bitmap
+    private int mMaxBitmapSize;
+    // Decides tile sizes for each sample
+    private TilingPolicy mTilingPolicy = DEFAULT_TILING_POLICY;
+    private final TilingPolicy.Params mTilingParams = new TilingPolicy.Params();
+    // Sums of decode calls to fit time = overhead + cost * pixels
+    private int mDecodeCostCount;
+    private double mDecodePixelSum;
+    private double mDecodeTimeSum;
+    private double mDecodePixelSquareSum;
+    private double mDecodeProductSum;
     // Indicate whether animator is running
     private boolean mAnimating;
     // Indicate whether finger is on the View
     private boolean mTouching;
+    // The velocity of window moving, pixels per second in dst
+    private float mVelocityX;
+    private float mVelocityY;
+    // The area to show when animator ends, tiles in it are kept
+    private final RectF mTargetRect = new RectF();
+    private int mTargetSample;
 
     private Paint mPaint;
+    // For ALPHA_8 tiles
+    private Paint mAlphaPaint;
+    private Paint mBlackPaint;
+
+    // A tiny bitmap of the whole image, drawn until full tiles are loaded
+    private Bitmap mPreview;
 
     // Sample for current rendered image
     private int mCurrentSample;
     // Sample for image fill windows
     private int mFullSample;
     private List<Tile> mFullTiles;
-    private final SparseArray<List<Tile>> mTilesMap = new SparseArray<>();
-
-    private FullTileTask mFullTileTask;
+    // Tiles created lazily for other samples
+    private final SparseArray<TileGrid<Tile>> mTilesMap = new SparseArray<>();
+    // The columns and rows of tiles in window in last frame
+    private final Rect mVisibleRange = new Rect();
+    // The sample of mVisibleRange, 0 for full tiles
+    private int mVisibleSample;
+
+    // Tiles with bitmap in mTilesMap, from the least recently drawn.
+    // The key is from sample and tile index.
+    private final LinkedHashMap<Long, Tile> mTileCache = new LinkedHashMap<>(0, 0.75f, true);
+    // The total bytes of bitmaps in mTileCache
+    private int mTileCacheSize;
+    // Whether trimTileCache() compresses evicted tiles
+    private boolean mTrimCompress;
+    private final TileGrid.Evictor<Tile> mTileEvictor = new TileGrid.Evictor<Tile>() {
+        @Override
+        public int evict(Tile tile) {
+            return evictTile(tile);
+        }
+    };
+    // The max bytes of bitmaps in mTileCache, -1 for default
+    private int mMaxTileCacheSize = -1;
+    private int mTileCacheHitCount;
+    private int mTileCacheMissCount;
+
+    // Running tasks for full tiles
+    private final List<FullTileTask> mFullTileTaskList = new ArrayList<>();
+    // Running tasks
     private final List<LoadTileTask> mLoadTileTaskList = new ArrayList<>();
+    // Running tasks to compress evicted tiles
+    private final List<CompressTileTask> mCompressTileTaskList = new ArrayList<>();
+    // Tiles waiting to load, dispatched in priority order
+    private final List<Tile> mPendingTiles = new ArrayList<>();
+    // Increased in every draw, wanted tiles are marked with it
+    private int mFrame;
+    // The uptime of last draw, for TileMemoryBudget
+    private long mLastDrawTime;
+    private int mCancelledTileCount;
+    private int mWastedTileCount;
+    private int mDecodedTileCount;
+    private int mFailedTileCount;
+    private int mEvictedTileCount;
+    // The count of tiles of other samples drawn in last frame
+    private int mFallbackTileCount;
+    // The count of tiles in window without bitmap in last frame,
+    // -1 if full tiles are not created
+    private int mMissingTileCount = -1;
+    // Decode latency histograms for each sample
+    private final SparseArray<int[]> mDecodeLatency = new SparseArray<>();
 
     private final Matrix mMatrix = new Matrix();
 
@@ -79,11 +240,116 @@ public class TiledBitmapSource extends ImageSource {
     private final RectF mTempRectF2 = new RectF();
     private final RectF mTempRectF3 = new RectF();
     private final RectF mTempRectF4 = new RectF();
+    private final RectF mTempRectF5 = new RectF();
+    private final Rect mTempRange1 = new Rect();
+    private final Rect mTempRange2 = new Rect();
+    private final Rect mTempRange3 = new Rect();
+    private final int[] mTempTileStep = new int[2];
     private final List<Tile> mTempTileList = new ArrayList<>();
+    private final List<Tile> mTempPrefetchList = new ArrayList<>();
+    private final List<Tile> mTempRangeList = new ArrayList<>();
 
     public TiledBitmapSource(RegionDecoder decoder) {
+        this(decoder, DecodeExecutor.getDefault());
+    }
+
+    /**
+     * Create a TiledBitmapSource whose tiles are decoded in the {@code Executor}.
+     *
+     * @see DecodeExecutor
+     */
+    public TiledBitmapSource(RegionDecoder decoder, Executor executor) {
         mDecoder = decoder;
+        mExecutor = executor;
         mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        mAlphaPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        mAlphaPaint.setColor(Color.WHITE);
+        mBlackPaint = new Paint();
+        mBlackPaint.setColor(Color.BLACK);
+        setBitmapPool(getDefaultBitmapPool());
+        mDiskTileCache = getDefaultDiskTileCache();
+        MemoryTrimmer.add(this);
+    }
+
+    /**
+     * Return the default {@link BitmapPool} for all TiledBitmapSource.
+     * It is a {@link LruBitmapPool} takes 1/16 of max memory, if not set.
+     */
+    public static synchronized BitmapPool getDefaultBitmapPool() {
+        if (sDefaultBitmapPool == null) {
+            final long maxSize = Runtime.getRuntime().maxMemory() / 16;
+            sDefaultBitmapPool = new LruBitmapPool((int) Math.min(maxSize, Integer.MAX_VALUE));
+        }
+        return sDefaultBitmapPool;
+    }
+
+    /**
+     * Set the default {@link BitmapPool} for TiledBitmapSource created after it.
+     * Set it to share {@code Bitmap}s with the app.
+     */
+    public static synchronized void setDefaultBitmapPool(@NonNull BitmapPool pool) {
+        sDefaultBitmapPool = pool;
+    }
+
+    /**
+     * Return the default {@link DiskTileCache} for all TiledBitmapSource.
+     * It's {@code null} if not set.
+     */
+    @Nullable
+    public static synchronized DiskTileCache getDefaultDiskTileCache() {
+        return sDefaultDiskTileCache;
+    }
+
+    /**
+     * Set the default {@link DiskTileCache} for TiledBitmapSource created after it.
+     */
+    public static synchronized void setDefaultDiskTileCache(@Nullable DiskTileCache cache) {
+        sDefaultDiskTileCache = cache;
+    }
+
+    /**
+     * Set the {@link DiskTileCache} to store decoded tiles.
+     * It only works if image key is set.
+     *
+     * @see #setImageKey(String)
+     */
+    public void setDiskTileCache(@Nullable DiskTileCache cache) {
+        mDiskTileCache = cache;
+    }
+
+    /**
+     * Set the {@link BitmapPool} to reuse {@code Bitmap}s of tiles.
+     * {@code null} to recycle {@code Bitmap}s directly.
+     */
+    public void setBitmapPool(@Nullable BitmapPool pool) {
+        mBitmapPool = pool;
+        if (mDecoder != null) {
+            mDecoder.setBitmapPool(pool);
+        }
+    }
+
+    /**
+     * Set a tiny {@code Bitmap} of the whole image, like the EXIF thumbnail.
+     * It's drawn scaled under the tiles until all full tiles are loaded,
+     * then it's released. TiledBitmapSource owns it now.
+     */
+    public void setPreview(@Nullable Bitmap preview) {
+        if (mPreview != null && mPreview != preview) {
+            releasePreview();
+        }
+        mPreview = preview;
+        if (mFullTiles != null && mFullTileTaskList.isEmpty()) {
+            // No need any more
+            releasePreview();
+        }
+        invalidateSelf();
+    }
+
+    private void releasePreview() {
+        if (mPreview != null) {
+            releaseBitmap(mPreview, mBitmapPool);
+            mPreview = null;
+        }
     }
 
     @Override
@@ -94,6 +360,202 @@ public class TiledBitmapSource extends ImageSource {
         return true;
     }
 
+    /**
+     * Set a stable key for the image. If it's not {@code null}, tiles are
+     * kept in {@link SharedTileCache} instead of being recycled, and
+     * other TiledBitmapSource with the same key could take them.
+     * Call it before the TiledBitmapSource is shown.
+     */
+    public void setImageKey(@Nullable String key) {
+        mImageKey = key;
+    }
+
+    /**
+     * Return the key to share tiles in {@link SharedTileCache}.
+     */
+    @Nullable
+    public String getImageKey() {
+        return mImageKey;
+    }
+
+    /**
+     * Set the max total bytes of tile bitmaps kept in memory, except full tiles.
+     * Tiles out of window and tiles of other sample are only recycled
+     * when the total bytes exceeds it. Tiles in window are never recycled.
+     * The default value is the bytes of 4 windows
+     * in the {@code Bitmap.Config} of the {@link RegionDecoder}.
+     *
+     * @param maxSize the max bytes, -1 for default value
+     */
+    public void setMaxTileCacheSize(int maxSize) {
+        mMaxTileCacheSize = maxSize;
+        trimTileCache(getMaxTileCacheSize(), true);
+        updateMemoryUsage();
+    }
+
+    /**
+     * Return the max total bytes of tile bitmaps kept in memory, except full tiles.
+     */
+    public int getMaxTileCacheSize() {
+        if (mMaxTileCacheSize >= 0) {
+            return mMaxTileCacheSize;
+        } else {
+            return mWindowWidth * mWindowHeight * getBytesPerPixel() * DEFAULT_TILE_CACHE_WINDOWS;
+        }
+    }
+
+    /**
+     * Set the {@link TilingPolicy} to decide tile sizes,
+     * {@code null} for {@link DefaultTilingPolicy}. Tiles are reset.
+     */
+    public void setTilingPolicy(@Nullable TilingPolicy policy) {
+        mTilingPolicy = policy != null ? policy : DEFAULT_TILING_POLICY;
+        if (mFullTiles != null) {
+            // Make ensureFullTiles() create tiles again
+            mFullSample = 0;
+            ensureFullTiles();
+        }
+    }
+
+    @NonNull
+    public TilingPolicy getTilingPolicy() {
+        return mTilingPolicy;
+    }
+
+    /**
+     * Return the total bytes of tile bitmaps kept in memory, except full tiles.
+     */
+    public int getTileCacheSize() {
+        return mTileCacheSize;
+    }
+
+    /**
+     * Return the count of tiles which have bitmaps when they become visible.
+     */
+    public int getTileCacheHitCount() {
+        return mTileCacheHitCount;
+    }
+
+    /**
+     * Return the count of tiles which need loading when they become visible.
+     */
+    public int getTileCacheMissCount() {
+        return mTileCacheMissCount;
+    }
+
+    /**
+     * Return the count of tile requests dropped before they are done,
+     * because the tiles are not wanted any more.
+     */
+    public int getCancelledTileCount() {
+        return mCancelledTileCount;
+    }
+
+    /**
+     * Return the count of tiles decoded but not wanted any more
+     * when they are done.
+     */
+    public int getWastedTileCount() {
+        return mWastedTileCount;
+    }
+
+    /**
+     * Return a snapshot of the counters, for telemetry.
+     * Call it in UI thread.
+     */
+    @NonNull
+    public TileMetrics getTileMetrics() {
+        final TileMetrics metrics = new TileMetrics();
+        metrics.mDecodedCount = mDecodedTileCount;
+        metrics.mFailedCount = mFailedTileCount;
+        metrics.mCancelledCount = mCancelledTileCount;
+        metrics.mWastedCount = mWastedTileCount;
+        metrics.mEvictedCount = mEvictedTileCount;
+        metrics.mHitCount = mTileCacheHitCount;
+        metrics.mMissCount = mTileCacheMissCount;
+        metrics.mFallbackTileCount = mFallbackTileCount;
+        metrics.mMissingTileCount = mMissingTileCount;
+        metrics.mResidentBytes = getResidentBytes();
+        for (int i = 0, n = mDecodeLatency.size(); i < n; i++) {
+            metrics.mDecodeLatency.put(mDecodeLatency.keyAt(i), mDecodeLatency.valueAt(i).clone());
+        }
+        return metrics;
+    }
+
+    // The bytes of tile bitmaps, full tiles included
+    private long getResidentBytes() {
+        long residentBytes = mTileCacheSize;
+        if (mFullTiles != null) {
+            for (Tile tile : mFullTiles) {
+                if (tile.bitmap != null) {
+                    residentBytes += LruBitmapPool.getBitmapSize(tile.bitmap);
+                }
+            }
+        }
+        return residentBytes;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        long usage = getResidentBytes();
+        if (mPreview != null) {
+            usage += LruBitmapPool.getBitmapSize(mPreview);
+        }
+        return usage;
+    }
+
+    // Report tile bytes to TileMemoryBudget
+    private void updateMemoryUsage() {
+        if (mDecoder != null) {
+            TileMemoryBudget.getInstance().update(this, getResidentBytes());
+        }
+    }
+
+    // Return the uptime of last draw, 0 if never drawn
+    long getLastDrawTime() {
+        return mLastDrawTime;
+    }
+
+    // Release at least the bytes of tiles for TileMemoryBudget.
+    // Release all tiles if all is true, otherwise release tiles out of window.
+    void trimToBudget(long bytes, boolean all) {
+        if (mDecoder == null) {
+            return;
+        }
+        if (all) {
+            // Full tiles are created again in next draw
+            resetTiles();
+            mFullSample = 0;
+        } else {
+            trimTileCache((int) Math.max(0, mTileCacheSize - bytes), true);
+        }
+        updateMemoryUsage();
+        invalidateIfVisible();
+    }
+
+    // Draw again without the released tiles. Invisible ones are
+    // invalidated in setVisible() when they are visible again.
+    private void invalidateIfVisible() {
+        if (isVisible()) {
+            invalidateSelf();
+        }
+    }
+
+    // Count the loaded tile
+    private void recordTileLoaded(int sample, boolean success, long millis) {
+        if (!success) {
+            ++mFailedTileCount;
+            return;
+        }
+        ++mDecodedTileCount;
+        int[] histogram = mDecodeLatency.get(sample);
+        if (histogram == null) {
+            histogram = new int[TileMetrics.LATENCY_BUCKET_COUNT];
+            mDecodeLatency.put(sample, histogram);
+        }
+        ++histogram[TileMetrics.getLatencyBucket(millis)];
+    }
+
     @Override
     public void setWindowSize(int w, int h) {
         mWindowWidth = w;
@@ -103,8 +565,7 @@ public class TiledBitmapSource extends ImageSource {
 
     @Override
     public void setMaxBitmapSize(int maxSize) {
-        // I think MaxBitmapSize / 4 is suitable for max tile size
-        mMaxTileSize = maxSize / 4;
+        mMaxBitmapSize = maxSize;
         ensureFullTiles();
     }
 
@@ -116,13 +577,64 @@ public class TiledBitmapSource extends ImageSource {
     @Override
     public void onAnimatorEnd() {
         mAnimating = false;
+        mTargetRect.setEmpty();
+        // Not moving, stop prefetching toward the old direction
+        mVelocityX = 0.0f;
+        mVelocityY = 0.0f;
         // Trigger loading missing tiles
         invalidateSelf();
     }
 
+    @Override
+    public void onAnimatorTarget(RectF src, RectF dst) {
+        if (mFullTiles == null) {
+            return;
+        }
+        final int sample = getSample(src, dst);
+        if (sample == mFullSample) {
+            // Full tiles are always there
+            return;
+        }
+
+        mTargetRect.set(src);
+        mTargetSample = sample;
+
+        // Load the tiles now, they are usually ready when animator ends
+        requestTargetTiles();
+        scheduleTiles();
+    }
+
+    // Request the tiles in target rect, center first
+    private void requestTargetTiles() {
+        final RectF target = mTargetRect;
+        final float x = target.centerX();
+        final float y = target.centerY();
+        final int sample = mTargetSample;
+        final TileGrid<Tile> grid = getTileGrid(sample);
+        final Rect range = mTempRange3;
+        if (!grid.getRange(target, range)) {
+            return;
+        }
+        for (int row = range.top; row < range.bottom; row++) {
+            for (int column = range.left; column < range.right; column++) {
+                final Tile t = grid.obtain(grid.getIndex(column, row));
+                if (t.bitmap != null || t.failed) {
+                    continue;
+                }
+                if (!t.loading && !t.pending && takeSharedTileBitmap(t)) {
+                    addToTileCache(t);
+                } else {
+                    requestTile(t, PRIORITY_TARGET, ImageMath.distance(t.rect, x, y));
+                }
+            }
+        }
+    }
+
     @Override
     public void onTouchStart() {
         mTouching = true;
+        mVelocityX = 0.0f;
+        mVelocityY = 0.0f;
     }
 
     @Override
@@ -132,6 +644,12 @@ public class TiledBitmapSource extends ImageSource {
         invalidateSelf();
     }
 
+    @Override
+    public void onScrollVelocity(float velocityX, float velocityY) {
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+    }
+
     @Override
     public int getWidth() {
         return mDecoder.getWidth();
@@ -142,34 +660,116 @@ public class TiledBitmapSource extends ImageSource {
         return mDecoder.getHeight();
     }
 
-    private static int calculateSample(int scaleX, int scaleY) {
-        int sample = Math.max(scaleX, scaleY);
-        sample = Math.max(1, sample);
-        return prevPow2(sample);
+    // The bytes per pixel of tiles
+    private int getBytesPerPixel() {
+        if (mDecoder == null) {
+            // Recycled
+            return 4;
+        }
+        switch (mDecoder.getConfig()) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
     }
 
-    private static void recycleTiles(List<Tile> tiles) {
-        if (tiles == null) {
+    // Put the bitmap to the pool, or recycle it if no pool
+    private static void releaseBitmap(Bitmap bitmap, BitmapPool pool) {
+        if (pool != null) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    // The key of tiles in CompressedTileCache
+    private String getCompressedKey() {
+        return mImageKey != null ? mImageKey : mLocalKey;
+    }
+
+    // Release the bitmap of the tile for space.
+    // Keep it compressed in CompressedTileCache if it's enabled.
+    private void evictTileBitmap(Tile tile) {
+        final Bitmap bitmap = tile.bitmap;
+        if (bitmap == null || tile.pinned > 0
+                || CompressedTileCache.getInstance().getMaxSize() <= 0) {
+            releaseTileBitmap(tile);
             return;
         }
+        tile.bitmap = null;
+        final CompressTileTask task = new CompressTileTask(this, tile, bitmap);
+        mCompressTileTaskList.add(task);
+        task.executeOnExecutor(mExecutor);
+    }
+
+    private void onCompressTileDone(CompressTileTask task) {
+        mCompressTileTaskList.remove(task);
+    }
+
+    // Keep the bitmap in SharedTileCache, or put it to the pool
+    private void releaseTileBitmap(Tile tile) {
+        final Bitmap bitmap = tile.bitmap;
+        if (bitmap == null) {
+            return;
+        }
+        if (tile.pinned > 0) {
+            // The LoadTileTask using it releases it when done
+            tile.bitmap = null;
+            return;
+        }
+        if (mImageKey != null) {
+            SharedTileCache.getInstance().put(mImageKey, tile.sample, tile.rect, bitmap);
+        } else {
+            releaseBitmap(bitmap, mBitmapPool);
+        }
+        tile.bitmap = null;
+    }
 
+    private void releaseTiles(List<Tile> tiles) {
+        if (tiles == null) {
+            return;
+        }
         for (Tile tile : tiles) {
-            final Bitmap bitmap = tile.bitmap;
-            if (bitmap != null) {
-                bitmap.recycle();
-                tile.bitmap = null;
-                // Reset failed flag
-                tile.failed = false;
-            }
+            releaseTileBitmap(tile);
+            // Reset failed flag
+            tile.failed = false;
+        }
+    }
+
+    private void releaseTiles(TileGrid<Tile> grid) {
+        for (int i = 0, n = grid.size(); i < n; i++) {
+            final Tile tile = grid.valueAt(i);
+            releaseTileBitmap(tile);
+            // Reset failed flag
+            tile.failed = false;
         }
+        grid.clear();
+    }
+
+    // Take the bitmap of the tile from SharedTileCache
+    private boolean takeSharedTileBitmap(Tile tile) {
+        if (mImageKey == null) {
+            return false;
+        }
+        final Bitmap bitmap = SharedTileCache.getInstance().take(mImageKey, tile.sample, tile.rect);
+        if (bitmap == null) {
+            return false;
+        }
+        tile.bitmap = bitmap;
+        tile.failed = false;
+        return true;
     }
 
     private void ensureFullTiles() {
-        if (mWindowWidth == 0 || mWindowHeight == 0 || mMaxTileSize == 0) {
+        if (mWindowWidth == 0 || mWindowHeight == 0 || mMaxBitmapSize == 0) {
             return;
         }
         // Get full sample
-        final int fullSample = calculateSample(mDecoder.getWidth() / mWindowWidth,
+        final int fullSample = ImageMath.calculateSample(mDecoder.getWidth() / mWindowWidth,
                 mDecoder.getHeight() / mWindowHeight);
         if (mFullSample == fullSample) {
             // full sample is still the same
@@ -177,175 +777,697 @@ public class TiledBitmapSource extends ImageSource {
         }
 
         mFullSample = fullSample;
+        resetTiles();
+
+        // Take full tiles from SharedTileCache
+        final List<Tile> fullTiles = genTileList(fullSample);
+        final List<Tile> missingTiles = mTempTileList;
+        final float centerX = mDecoder.getWidth() / 2.0f;
+        final float centerY = mDecoder.getHeight() / 2.0f;
+        for (Tile tile : fullTiles) {
+            if (!takeSharedTileBitmap(tile)) {
+                tile.priority = PRIORITY_VISIBLE;
+                tile.distance = ImageMath.distance(tile.rect, centerX, centerY);
+                missingTiles.add(tile);
+            }
+        }
+        mFullTiles = fullTiles;
+
+        // Decode missing full tiles in parallel, center first.
+        // Each one is drawn once it's done.
+        Collections.sort(missingTiles, TILE_PRIORITY_COMPARATOR);
+        for (Tile tile : missingTiles) {
+            final FullTileTask task = new FullTileTask(this, tile);
+            mFullTileTaskList.add(task);
+            task.executeOnExecutor(mExecutor);
+        }
+        missingTiles.clear();
+        if (mFullTileTaskList.isEmpty()) {
+            releasePreview();
+        }
 
-        // Recycle all tiles
+        invalidateSelf();
+    }
+
+    // Release all tiles and cancel all tasks
+    private void resetTiles() {
         if (mFullTiles != null) {
-            recycleTiles(mFullTiles);
+            releaseTiles(mFullTiles);
             mFullTiles = null;
         }
+        mMissingTileCount = -1;
         for (int i = 0, len = mTilesMap.size(); i < len; i++) {
-            recycleTiles(mTilesMap.valueAt(i));
+            releaseTiles(mTilesMap.valueAt(i));
         }
         mTilesMap.clear();
+        mTileCache.clear();
+        mTileCacheSize = 0;
+        mVisibleRange.setEmpty();
+        mVisibleSample = 0;
 
-        // Cancel all tasks
-        if (mFullTileTask != null) {
-            mFullTileTask.cancel(false);
-            mFullTileTask = null;
+        for (FullTileTask task : mFullTileTaskList) {
+            task.cancel(false);
         }
+        mFullTileTaskList.clear();
         for (LoadTileTask task : mLoadTileTaskList) {
             task.cancel(false);
         }
+        mCancelledTileCount += mLoadTileTaskList.size() + mPendingTiles.size();
         mLoadTileTaskList.clear();
+        mPendingTiles.clear();
+        mTargetRect.setEmpty();
+    }
 
-        // Start FullTileTask
-        mFullTileTask = new FullTileTask(this);
-        mFullTileTask.execute();
+    // Release memory for ComponentCallbacks2.onTrimMemory(), called by MemoryTrimmer
+    void trimMemory(int level) {
+        if (mDecoder == null) {
+            // Recycled
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && !isVisible())) {
+            // Full tiles are created again in next draw
+            resetTiles();
+            mFullSample = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Keep the tiles in window
+            trimTileCache(0, false);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTileCache(mTileCacheSize / 2, false);
+        }
+        updateMemoryUsage();
+        invalidateIfVisible();
+    }
 
+    private void onFullTileDone(FullTileTask task, Tile tile, Bitmap bitmap, long loadTime) {
+        mFullTileTaskList.remove(task);
+        recordDecodeCost(task);
+        tile.loading = false;
+        tile.bitmap = bitmap;
+        if (bitmap == null) {
+            Log.w(LOG_TAG, "Failed to decode full tile");
+            tile.failed = true;
+        }
+        recordTileLoaded(tile.sample, bitmap != null, loadTime);
+        if (mFullTileTaskList.isEmpty()) {
+            // Full tiles cover the preview now
+            releasePreview();
+        }
+        updateMemoryUsage();
+        // Full tiles are drawn in every sample, as fallback
         invalidateSelf();
     }
 
-    private void onFullTileDone(List<Tile> tiles) {
-        mFullTileTask = null;
-        mFullTiles = tiles;
-        invalidateSelf();
+    private static long getTileKey(int sample, int index) {
+        return ((long) sample << 32) | index;
+    }
+
+    private void addToTileCache(Tile tile) {
+        mTileCache.put(getTileKey(tile.sample, tile.index), tile);
+        mTileCacheSize += LruBitmapPool.getBitmapSize(tile.bitmap);
     }
 
-    private void onLoadTileDone(LoadTileTask task, int sample) {
+    private void onLoadTileDone(LoadTileTask task, Tile tile, int sample) {
         mLoadTileTaskList.remove(task);
+        recordTileLoaded(sample, tile.bitmap != null, task.getLoadTime());
+        recordDecodeCost(task);
+        if (tile.bitmap != null) {
+            addToTileCache(tile);
+            if (tile.wantedFrame != mFrame) {
+                // Scrolled away when decoding, but keep it in cache
+                ++mWastedTileCount;
+            }
+        }
         if (sample == mCurrentSample) {
             invalidateSelf();
         }
+        updateMemoryUsage();
+        // A slot is free now
+        scheduleTiles();
     }
 
-    private static void mapRect(RectF src, RectF dst, RectF s, RectF d) {
-        final float sX = src.left;
-        final float sY = src.top;
-        final float dX = dst.left;
-        final float dY = dst.top;
-        final float scaleX = dst.width() / src.width();
-        final float scaleY = dst.height() / src.height();
-        d.set(dX + (s.left - sX) * scaleX,
-                dY + (s.top - sY) * scaleY,
-                dX + (s.right - sX) * scaleX,
-                dY + (s.bottom - sY) * scaleY);
+    // Mark the tile wanted in this frame, keep the highest priority
+    private void wantTile(Tile tile, int priority, float distance) {
+        if (tile.wantedFrame != mFrame || priority < tile.priority
+                || (priority == tile.priority && distance < tile.distance)) {
+            tile.wantedFrame = mFrame;
+            tile.priority = priority;
+            tile.distance = distance;
+        }
     }
 
-    private static void mapRect(RectF rect, int sample) {
-        rect.left /= sample;
-        rect.top /= sample;
-        rect.right /= sample;
-        rect.bottom /= sample;
+    // Mark the tile wanted and add it to pending list if it's not loading
+    private void requestTile(Tile tile, int priority, float distance) {
+        wantTile(tile, priority, distance);
+        if (!tile.loading && !tile.pending) {
+            tile.pending = true;
+            mPendingTiles.add(tile);
+        }
     }
 
-    // For full tiles
-    private void drawFullTiles(Canvas canvas, RectF src, RectF dst, List<Tile> tiles, int sample) {
-        final RectF s = mTempRectF1;
-        final RectF d = mTempRectF2;
+    // Drop pending tiles not wanted in this frame,
+    // then start loading the most wanted ones if there are free slots.
+    // Running LoadTileTasks are no more than the decoder could decode at the same time,
+    // the others wait in pending list, so they could be reordered or dropped before decoding.
+    private void scheduleTiles() {
+        final List<Tile> pending = mPendingTiles;
+        for (Iterator<Tile> iterator = pending.iterator(); iterator.hasNext();) {
+            final Tile tile = iterator.next();
+            if (tile.bitmap != null || tile.wantedFrame != mFrame) {
+                if (tile.bitmap == null) {
+                    ++mCancelledTileCount;
+                }
+                tile.pending = false;
+                iterator.remove();
+                removeTileIfEmpty(tile);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+        final int maxRunning = mDecoder.getMaxConcurrency();
+        if (mLoadTileTaskList.size() >= maxRunning) {
+            return;
+        }
+
+        Collections.sort(pending, TILE_PRIORITY_COMPARATOR);
+        while (!pending.isEmpty() && mLoadTileTaskList.size() < maxRunning) {
+            final Tile tile = pending.remove(0);
+            tile.pending = false;
+            final LoadTileTask task = newLoadTileTask(tile, tile.priority == PRIORITY_PREFETCH);
+            mLoadTileTaskList.add(task);
+            task.executeOnExecutor(mExecutor);
+        }
+    }
+
+    // Create the task to load the tile. If some tiles of the next finer sample
+    // in the area are loaded, the task makes the tile from them.
+    private LoadTileTask newLoadTileTask(Tile tile, boolean prefetch) {
+        Tile[] finerTiles = null;
+        Rect[] finerRects = null;
+
+        final int sample = tile.sample / 2;
+        final TileGrid<Tile> grid = sample >= 1 ? mTilesMap.get(sample) : null;
+        final RectF area = mTempRectF1;
+        final Rect range = mTempRange3;
+        area.set(tile.rect);
+        if (grid != null && isAligned(mTilesMap.get(tile.sample), grid)
+                && grid.getRange(area, range)) {
+            final int n = range.width() * range.height();
+            final Tile[] tiles = new Tile[n];
+            final Rect[] rects = new Rect[n];
+            int loaded = 0;
+            int i = 0;
+            for (int row = range.top; row < range.bottom; row++) {
+                for (int column = range.left; column < range.right; column++) {
+                    final int index = grid.getIndex(column, row);
+                    final Tile t = grid.get(index);
+                    if (t != null && t.bitmap != null) {
+                        tiles[i] = t;
+                        rects[i] = t.rect;
+                        ++loaded;
+                    } else {
+                        rects[i] = new Rect();
+                        grid.getRect(index, rects[i]);
+                    }
+                    i++;
+                }
+            }
+            if (loaded > 0 && n - loaded <= MAX_MISSING_FINER_TILES) {
+                finerTiles = tiles;
+                finerRects = rects;
+            }
+        }
+
+        return new LoadTileTask(this, tile, tile.sample, prefetch, finerTiles, finerRects);
+    }
+
+    // Whether every finer tile is in only one coarser tile
+    private static boolean isAligned(TileGrid<Tile> coarser, TileGrid<Tile> finer) {
+        return (coarser.getColumns() == 1 || coarser.getStepX() % finer.getStepX() == 0)
+                && (coarser.getRows() == 1 || coarser.getStepY() % finer.getStepY() == 0);
+    }
+
+    // Draw the part s of the bitmap to d
+    private void drawBitmap(Canvas canvas, Bitmap bitmap, RectF s, RectF d) {
         final Matrix matrix = mMatrix;
-        final Paint paint = mPaint;
+        matrix.setRectToRect(s, d, Matrix.ScaleToFit.FILL);
+        if (bitmap.getConfig() == Bitmap.Config.ALPHA_8) {
+            // ALPHA_8 is for grayscale, draw alpha as white on black
+            canvas.drawRect(d, mBlackPaint);
+            canvas.drawBitmap(bitmap, matrix, mAlphaPaint);
+        } else {
+            canvas.drawBitmap(bitmap, matrix, mPaint);
+        }
+    }
 
+    // Draw the tile in src to dst
+    // Return false if nothing is drawn
+    private boolean drawTile(Canvas canvas, RectF src, RectF dst, Tile t, int sample) {
+        final RectF s = mTempRectF1;
+        // mTempRectF2 could be src in drawFallbackTiles()
+        final RectF d = mTempRectF3;
+        final Bitmap bitmap = t.bitmap;
+        if (bitmap == null) { return false; }
+        s.set(t.rect);
+        if (!s.intersect(src)) { return false; }
+        ImageMath.mapRect(src, dst, s, d);
+        s.offset(-t.rect.left, -t.rect.top);
+        ImageMath.mapRect(s, sample);
+        drawBitmap(canvas, bitmap, s, d);
+        t.drawnFrame = mFrame;
+        return true;
+    }
+
+    // For full tiles, return the count of drawn tiles
+    private int drawTiles(Canvas canvas, RectF src, RectF dst, List<Tile> tiles, int sample) {
+        int count = 0;
         for (final Tile t : tiles) {
-            s.set(t.rect);
-            if (!s.intersect(src)) { continue; }
-            final Bitmap bitmap = t.bitmap;
-            if (bitmap == null) { continue; }
-            mapRect(src, dst, s, d);
-            s.offset(-t.rect.left, -t.rect.top);
-            mapRect(s, sample);
-            matrix.setRectToRect(s, d, Matrix.ScaleToFit.FILL);
-            canvas.drawBitmap(bitmap, matrix, paint);
+            if (drawTile(canvas, src, dst, t, sample)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // Draw the loaded tiles in the grid, for fallback tiles.
+    // Return the count of drawn tiles.
+    private int drawTiles(Canvas canvas, RectF src, RectF dst, TileGrid<Tile> grid, int sample) {
+        final Rect range = mTempRange3;
+        if (!grid.getRange(src, range)) {
+            return 0;
+        }
+        int count = 0;
+        if (range.width() * range.height() <= grid.size()) {
+            for (int row = range.top; row < range.bottom; row++) {
+                for (int column = range.left; column < range.right; column++) {
+                    final Tile t = grid.get(grid.getIndex(column, row));
+                    if (t != null && drawTile(canvas, src, dst, t, sample)) {
+                        ++count;
+                    }
+                }
+            }
+        } else {
+            // Less loaded tiles than tiles in range, like a far finer sample
+            for (int i = 0, n = grid.size(); i < n; i++) {
+                final int index = grid.keyAt(i);
+                if (range.contains(grid.getColumn(index), grid.getRow(index))
+                        && drawTile(canvas, src, dst, grid.valueAt(i), sample)) {
+                    ++count;
+                }
+            }
         }
+        return count;
     }
 
     // For not full tiles
-    private void drawMapTiles(Canvas canvas, RectF src, RectF dst, List<Tile> tiles, int sample) {
+    private void drawMapTiles(Canvas canvas, RectF src, RectF dst, TileGrid<Tile> grid, int sample) {
         final List<Tile> list = mTempTileList;
         final RectF s = mTempRectF1;
         final RectF src2 = mTempRectF2;
 
+        // Get the tiles in window
+        final Rect range = mTempRange1;
+        grid.getRange(src, range);
+        // The tiles in last visible range were visible in last frame
+        final Rect lastRange = mVisibleSample == sample ? mVisibleRange : null;
+
+        // Get the area to prefetch
+        final RectF prefetchRect = mTempRectF5;
+        final boolean prefetch = !mAnimating && !mTouching
+                && getPrefetchRect(src, dst, grid, prefetchRect);
+        final List<Tile> prefetchList = mTempPrefetchList;
+        // The bytes of visible tiles, they can't be recycled
+        int visibleSize = 0;
+        // The bytes of loaded tiles in prefetch rect
+        int prefetchedSize = 0;
+
+        final float centerX = src.centerX();
+        final float centerY = src.centerY();
         boolean firstMiss = true;
         // Get missing tiles
-        for (Tile t : tiles) {
-            s.set(t.rect);
-            if (s.intersect(src)) {
-                t.visible = true;
-                // Check bitmap in this tile
-                if (t.bitmap == null) {
-                    // Missing bitmap, add to miss rect
-                    if (firstMiss) {
-                        firstMiss = false;
-                        src2.set(s);
-                    } else {
-                        src2.union(s);
-                    }
+        final List<Tile> rangeList = mTempRangeList;
+        grid.obtainRange(range, rangeList);
+        for (int i = 0, n = rangeList.size(); i < n; i++) {
+            final Tile t = rangeList.get(i);
+            final boolean newVisible = lastRange == null
+                    || !lastRange.contains(grid.getColumn(t.index), grid.getRow(t.index));
+            // The tile might be recycled by other TiledBitmapSource
+            if (t.bitmap == null && !t.loading && !t.pending && takeSharedTileBitmap(t)) {
+                addToTileCache(t);
+            }
+            // Check bitmap in this tile
+            if (t.bitmap == null) {
+                ++mMissingTileCount;
+                if (newVisible) {
+                    ++mTileCacheMissCount;
+                }
+                // Missing bitmap, add to miss rect
+                s.set(t.rect);
+                s.intersect(src);
+                if (firstMiss) {
+                    firstMiss = false;
+                    src2.set(s);
+                } else {
+                    src2.union(s);
+                }
 
-                    if (!t.loading && !t.failed && !mAnimating && !mTouching) {
+                if (!t.failed) {
+                    // Center first
+                    final float distance = ImageMath.distance(t.rect, centerX, centerY);
+                    if (!mAnimating && !mTouching) {
                         // It is not animating now and
-                        // the tile is not loading, not have failed,
-                        // start load tile task now
-                        final LoadTileTask task = new LoadTileTask(this, t, sample);
-                        mLoadTileTaskList.add(task);
-                        task.execute();
+                        // the tile has not failed, request it now
+                        requestTile(t, PRIORITY_VISIBLE, distance);
+                    } else {
+                        // Keep the pending request
+                        wantTile(t, PRIORITY_VISIBLE, distance);
                     }
-                } else {
-                    // Add this tile to render list
-                    list.add(t);
                 }
             } else {
-                t.visible = false;
+                if (newVisible) {
+                    ++mTileCacheHitCount;
+                }
+                // Mark it the most recently drawn
+                mTileCache.get(getTileKey(sample, t.index));
+                visibleSize += LruBitmapPool.getBitmapSize(t.bitmap);
+                // Add this tile to render list
+                list.add(t);
             }
         }
+        rangeList.clear();
+
+        if (prefetch) {
+            // Get the tiles in prefetch rect but not in window
+            final Rect prefetchRange = mTempRange2;
+            grid.getRange(prefetchRect, prefetchRange);
+            for (int row = prefetchRange.top; row < prefetchRange.bottom; row++) {
+                for (int column = prefetchRange.left; column < prefetchRange.right; column++) {
+                    if (range.contains(column, row)) {
+                        continue;
+                    }
+                    final Tile t = grid.obtain(grid.getIndex(column, row));
+                    if (t.failed) {
+                        continue;
+                    }
+                    if (t.bitmap != null) {
+                        prefetchedSize += LruBitmapPool.getBitmapSize(t.bitmap);
+                    } else if (t.loading || t.pending) {
+                        // Keep the request
+                        wantTile(t, PRIORITY_PREFETCH, t.distance);
+                    } else {
+                        prefetchList.add(t);
+                    }
+                }
+            }
 
-        final RectF d = mTempRectF3;
-        final Matrix matrix = mMatrix;
-        final Paint paint = mPaint;
+            prefetchTiles(prefetchList, prefetchRect, grid, sample, visibleSize, prefetchedSize);
+            // Drop the tiles not requested
+            for (Tile t : prefetchList) {
+                removeTileIfEmpty(t);
+            }
+        }
+        prefetchList.clear();
+
+        setVisibleRange(sample, range);
 
-        // Draw full tiles to fill missing rect
+        // Draw tiles of other samples to fill missing rect
         if (!firstMiss) {
             final RectF dst2 = mTempRectF4;
-            mapRect(src, dst, src2, dst2);
-            for (final Tile t : mFullTiles) {
-                s.set(t.rect);
-                if (!s.intersect(src2)) { continue; }
-                final Bitmap bitmap = t.bitmap;
-                if (bitmap == null) { continue; }
-                mapRect(src2, dst2, s, d);
-                s.offset(-t.rect.left, -t.rect.top);
-                mapRect(s, mFullSample);
-                matrix.setRectToRect(s, d, Matrix.ScaleToFit.FILL);
-                canvas.drawBitmap(bitmap, matrix, paint);
-            }
+            ImageMath.mapRect(src, dst, src2, dst2);
+            drawFallbackTiles(canvas, src2, dst2, sample);
         }
 
         // Draw tile in list
         for (final Tile t : list) {
-            s.set(t.rect);
-            if (!s.intersect(src)) { continue; }
-            final Bitmap bitmap = t.bitmap;
-            if (bitmap == null) { continue; }
-            mapRect(src, dst, s, d);
-            s.offset(-t.rect.left, -t.rect.top);
-            mapRect(s, sample);
-            matrix.setRectToRect(s, d, Matrix.ScaleToFit.FILL);
-            canvas.drawBitmap(bitmap, matrix, paint);
+            drawTile(canvas, src, dst, t, sample);
         }
         list.clear();
     }
 
-    // Gen tile list for the sample
+    // Remove the empty tiles which are out of window now,
+    // then save the visible range for next frame
+    private void setVisibleRange(int sample, @Nullable Rect range) {
+        final Rect lastRange = mVisibleRange;
+        final TileGrid<Tile> grid = mVisibleSample != 0 ? mTilesMap.get(mVisibleSample) : null;
+        if (grid != null) {
+            final boolean sameSample = sample == mVisibleSample && range != null;
+            for (int row = lastRange.top; row < lastRange.bottom; row++) {
+                for (int column = lastRange.left; column < lastRange.right; column++) {
+                    if (sameSample && range.contains(column, row)) {
+                        continue;
+                    }
+                    final Tile t = grid.get(grid.getIndex(column, row));
+                    if (t != null) {
+                        removeTileIfEmpty(t);
+                    }
+                }
+            }
+        }
+
+        mVisibleSample = sample;
+        if (range != null) {
+            lastRange.set(range);
+        } else {
+            lastRange.setEmpty();
+        }
+    }
+
+    // Fill the missing rect with the loaded tiles of other samples.
+    // Draw from the worst to the best, the better ones cover the worse ones:
+    // full tiles, far coarser tiles, finer tiles, then the nearest coarser tiles.
+    private void drawFallbackTiles(Canvas canvas, RectF src, RectF dst, int sample) {
+        int count = drawTiles(canvas, src, dst, mFullTiles, mFullSample);
+
+        // Samples in mTilesMap are in ascending order
+        final SparseArray<TileGrid<Tile>> map = mTilesMap;
+        final int size = map.size();
+        final int index = map.indexOfKey(sample);
+        if (index >= 0) {
+            // Far coarser tiles, the farthest first
+            for (int i = size - 1; i > index + 1; i--) {
+                count += drawTiles(canvas, src, dst, map.valueAt(i), map.keyAt(i));
+            }
+            // Finer tiles scaled down, the farthest first
+            for (int i = 0; i < index; i++) {
+                count += drawTiles(canvas, src, dst, map.valueAt(i), map.keyAt(i));
+            }
+            // The nearest coarser tiles
+            if (index + 1 < size) {
+                count += drawTiles(canvas, src, dst, map.valueAt(index + 1), map.keyAt(index + 1));
+            }
+        }
+        mFallbackTileCount = count;
+    }
+
+    // Get the area around src to prefetch, it extends to the direction of velocity.
+    // Return false if no need to prefetch.
+    private boolean getPrefetchRect(RectF src, RectF dst, TileGrid<Tile> grid, RectF prefetchRect) {
+        // Image pixels per dst pixel
+        final float scaleX = src.width() / dst.width();
+        final float scaleY = src.height() / dst.height();
+        final float maxOffsetX = src.width() * MAX_PREFETCH_WINDOWS;
+        final float maxOffsetY = src.height() * MAX_PREFETCH_WINDOWS;
+        final float offsetX = ImageMath.clamp(mVelocityX * scaleX * PREFETCH_SECONDS,
+                -maxOffsetX, maxOffsetX);
+        final float offsetY = ImageMath.clamp(mVelocityY * scaleY * PREFETCH_SECONDS,
+                -maxOffsetY, maxOffsetY);
+        // Always prefetch half a tile around
+        prefetchRect.set(src);
+        prefetchRect.inset(-grid.getStepX() / 2.0f, -grid.getStepY() / 2.0f);
+        if (offsetX > 0) {
+            prefetchRect.right += offsetX;
+        } else {
+            prefetchRect.left += offsetX;
+        }
+        if (offsetY > 0) {
+            prefetchRect.bottom += offsetY;
+        } else {
+            prefetchRect.top += offsetY;
+        }
+        return prefetchRect.intersect(0, 0, mDecoder.getWidth(), mDecoder.getHeight());
+    }
+
+    // Start prefetch tasks with lower priority than visible tiles.
+    // Prefetch tasks are cancelled first if tile cache is full.
+    private void prefetchTiles(List<Tile> tiles, RectF prefetchRect, TileGrid<Tile> grid,
+            int sample, int visibleSize, int prefetchedSize) {
+        int visibleTaskCount = 0;
+        int prefetchTaskCount = 0;
+        for (LoadTileTask task : mLoadTileTaskList) {
+            if (task.isPrefetch()) {
+                ++prefetchTaskCount;
+            } else {
+                ++visibleTaskCount;
+            }
+        }
+        for (Tile tile : mPendingTiles) {
+            if (tile.priority == PRIORITY_PREFETCH) {
+                ++prefetchTaskCount;
+            } else {
+                ++visibleTaskCount;
+            }
+        }
+
+        final int tileSize = (grid.getStepX() / sample) * (grid.getStepY() / sample)
+                * getBytesPerPixel();
+        // Don't prefetch over the budget of all TiledBitmapSource
+        final int maxSize = (int) Math.min(getMaxTileCacheSize(),
+                mTileCacheSize + TileMemoryBudget.getInstance().getAvailableSize());
+        if (visibleSize + (visibleTaskCount + prefetchTaskCount) * tileSize > maxSize) {
+            // Not enough memory, drop prefetch tasks
+            cancelPrefetchTasks();
+            return;
+        }
+        if (visibleTaskCount > 0 || tiles.isEmpty()) {
+            // Load visible tiles first
+            return;
+        }
+
+        // Tiles near the end of prefetch rect first,
+        // the window is moving to there
+        final float x = mVelocityX > 0 ? prefetchRect.right
+                : (mVelocityX < 0 ? prefetchRect.left : prefetchRect.centerX());
+        final float y = mVelocityY > 0 ? prefetchRect.bottom
+                : (mVelocityY < 0 ? prefetchRect.top : prefetchRect.centerY());
+        for (Tile tile : tiles) {
+            tile.priority = PRIORITY_PREFETCH;
+            tile.distance = ImageMath.distance(tile.rect, x, y);
+        }
+        Collections.sort(tiles, TILE_PRIORITY_COMPARATOR);
+
+        // Don't recycle prefetched tiles for prefetching
+        int size = visibleSize + prefetchedSize + prefetchTaskCount * tileSize;
+        for (int i = 0, n = tiles.size(); i < n && prefetchTaskCount < MAX_PREFETCH_TASKS; i++) {
+            size += tileSize;
+            if (size > maxSize) {
+                break;
+            }
+            final Tile tile = tiles.get(i);
+            requestTile(tile, PRIORITY_PREFETCH, tile.distance);
+            ++prefetchTaskCount;
+        }
+    }
+
+    private void cancelPrefetchTasks() {
+        for (Iterator<LoadTileTask> iterator = mLoadTileTaskList.iterator(); iterator.hasNext();) {
+            final LoadTileTask task = iterator.next();
+            if (task.isPrefetch()) {
+                task.cancel(false);
+                iterator.remove();
+                ++mCancelledTileCount;
+            }
+        }
+        for (Iterator<Tile> iterator = mPendingTiles.iterator(); iterator.hasNext();) {
+            final Tile tile = iterator.next();
+            if (tile.priority == PRIORITY_PREFETCH) {
+                tile.pending = false;
+                iterator.remove();
+                ++mCancelledTileCount;
+                removeTileIfEmpty(tile);
+            }
+        }
+    }
+
+    // Get the sample to draw src to dst
+    private int getSample(RectF src, RectF dst) {
+        final int sample = ImageMath.calculateSample((int) (src.width() / dst.width()),
+                (int) (src.height() / dst.height()));
+        // Full sample must be the biggest sample
+        return Math.min(mFullSample, sample);
+    }
+
+    // Get tile grid for the sample, create it if missing
+    private TileGrid<Tile> getTileGrid(int sample) {
+        TileGrid<Tile> grid = mTilesMap.get(sample);
+        if (grid == null) {
+            final int[] step = mTempTileStep;
+            getTileStep(sample, step);
+            grid = new TileGrid<>(mDecoder.getWidth(), mDecoder.getHeight(),
+                    step[0], step[1], new TileFactory(sample));
+            mTilesMap.put(sample, grid);
+        }
+        return grid;
+    }
+
+    // Remove the tile from its grid if it holds nothing.
+    // Failed tiles are kept, or they would be loaded again.
+    private void removeTileIfEmpty(Tile tile) {
+        if (tile.bitmap != null || tile.loading || tile.pending || tile.pinned > 0 || tile.failed) {
+            return;
+        }
+        final TileGrid<Tile> grid = mTilesMap.get(tile.sample);
+        if (grid != null && grid.get(tile.index) == tile) {
+            grid.remove(tile.index);
+        }
+    }
+
+    // Get the tile width and height for the sample in image pixels.
+    // The size is from TilingPolicy, rounded up to the alignment of the decoder.
+    private void getTileStep(int sample, int[] step) {
+        final TilingPolicy.Params params = mTilingParams;
+        params.mImageWidth = mDecoder.getWidth();
+        params.mImageHeight = mDecoder.getHeight();
+        params.mWindowWidth = mWindowWidth;
+        params.mWindowHeight = mWindowHeight;
+        params.mMaxBitmapSize = mMaxBitmapSize;
+        params.mMaxMemory = getMaxTileCacheSize();
+        params.mBytesPerPixel = getBytesPerPixel();
+        params.mDecodeOverhead = -1;
+        params.mDecodeCostPerPixel = -1.0f;
+        // Least squares of time = overhead + cost * pixels
+        final int n = mDecodeCostCount;
+        final double d = n * mDecodePixelSquareSum - mDecodePixelSum * mDecodePixelSum;
+        if (n >= MIN_DECODE_COST_COUNT && d > 0) {
+            final double cost = (n * mDecodeProductSum - mDecodePixelSum * mDecodeTimeSum) / d;
+            if (cost > 0) {
+                params.mDecodeCostPerPixel = (float) cost;
+                params.mDecodeOverhead = Math.max(0L,
+                        (long) ((mDecodeTimeSum - cost * mDecodePixelSum) / n));
+            }
+        }
+
+        mTilingPolicy.getTileSize(params, sample, step);
+        // Keep steps multiples of sample, tile bitmaps are step / sample
+        final int alignment = ImageMath.lcm(sample, Math.max(1, mDecoder.getPreferredAlignment()));
+        step[0] = ImageMath.ceilDiv(Math.max(1, step[0]) * sample, alignment) * alignment;
+        step[1] = ImageMath.ceilDiv(Math.max(1, step[1]) * sample, alignment) * alignment;
+    }
+
+    // Add the decode call of the task to decode costs
+    private void recordDecodeCost(BaseTask<?, ?, ?> task) {
+        final long time = task.getDecodeTime();
+        if (time < 0) {
+            return;
+        }
+        final double pixels = task.getDecodePixels();
+        ++mDecodeCostCount;
+        mDecodePixelSum += pixels;
+        mDecodeTimeSum += time;
+        mDecodePixelSquareSum += pixels * pixels;
+        mDecodeProductSum += pixels * time;
+    }
+
+    // Gen all the tiles for the sample, only for full tiles
     private List<Tile> genTileList(int sample) {
         final int width = mDecoder.getWidth();
         final int height = mDecoder.getHeight();
-        final int step = mMaxTileSize * sample;
-        final List<Tile> list = new ArrayList<>(ceilDiv(width, step) * ceilDiv(height, step));
-
-        for (int y = 0; y < height; y += step) {
-            for (int x = 0; x < width; x += step) {
-                final int w = Math.min(step, width - x);
-                final int h = Math.min(step, height - y);
+        final int[] step = mTempTileStep;
+        getTileStep(sample, step);
+        final int stepX = step[0];
+        final int stepY = step[1];
+        final List<Tile> list = new ArrayList<>(
+                ImageMath.ceilDiv(width, stepX) * ImageMath.ceilDiv(height, stepY));
+
+        for (int y = 0; y < height; y += stepY) {
+            for (int x = 0; x < width; x += stepX) {
+                final int w = Math.min(stepX, width - x);
+                final int h = Math.min(stepY, height - y);
                 final Rect rect = new Rect(x, y, x + w, y + h);
                 final Tile tile = new Tile();
+                tile.sample = sample;
+                tile.index = list.size();
                 tile.rect = rect;
                 list.add(tile);
             }
@@ -354,182 +1476,388 @@ public class TiledBitmapSource extends ImageSource {
         return list;
     }
 
-    private void gc() {
-        for (int i = 0, len = mTilesMap.size(); i < len; i++) {
-            final int sample = mTilesMap.keyAt(i);
-            final List<Tile> list = mTilesMap.valueAt(i);
-            if (sample != mCurrentSample) {
-                // Recycle all tiles for non current sample
-                recycleTiles(list);
+    // Recycle the least recently drawn tiles until the cache size is fine,
+    // but keep the visible tiles of current sample.
+    // Don't compress evicted tiles if the system is short of memory.
+    private void trimTileCache(int maxSize, boolean compress) {
+        if (mTileCacheSize <= maxSize) {
+            return;
+        }
+        mTrimCompress = compress;
+        mTileCacheSize = TileGrid.trim(mTileCache, mTileCacheSize, maxSize, mTileEvictor);
+    }
+
+    // Release the tile for trimTileCache(), -1 to keep it
+    private int evictTile(Tile tile) {
+        if (tile.sample == mVisibleSample && isVisible(tile)) {
+            return -1;
+        }
+        if (tile.drawnFrame == mFrame) {
+            // Like fallback tiles, the display list might still draw the bitmap,
+            // it can't be reused now
+            return -1;
+        }
+        if (tile.pinned > 0) {
+            // Used to make coarser tiles
+            return -1;
+        }
+        if (tile.sample == mTargetSample && mTargetRect.intersects(
+                tile.rect.left, tile.rect.top, tile.rect.right, tile.rect.bottom)) {
+            // It will be visible when animator ends
+            return -1;
+        }
+        int size = 0;
+        final Bitmap bitmap = tile.bitmap;
+        if (bitmap != null) {
+            size = LruBitmapPool.getBitmapSize(bitmap);
+            if (mTrimCompress) {
+                evictTileBitmap(tile);
             } else {
-                // Only recycle invisible tile for current sample
-                for (Tile tile : list) {
-                    if (!tile.visible) {
-                        final Bitmap bitmap = tile.bitmap;
-                        if (bitmap != null) {
-                            bitmap.recycle();
-                            tile.bitmap = null;
-                            // Don't reset failed flag for current sample
-                        }
-                    }
-                }
+                releaseTileBitmap(tile);
             }
+            ++mEvictedTileCount;
         }
+        removeTileIfEmpty(tile);
+        return size;
+    }
+
+    // Whether the tile is in visible range
+    private boolean isVisible(Tile tile) {
+        final TileGrid<Tile> grid = mTilesMap.get(tile.sample);
+        return grid != null && mVisibleRange.contains(
+                grid.getColumn(tile.index), grid.getRow(tile.index));
+    }
+
+    // Draw the preview scaled, under everything
+    private void drawPreview(Canvas canvas, RectF src, RectF dst) {
+        final Bitmap preview = mPreview;
+        final RectF s = mTempRectF1;
+        final float scaleX = (float) preview.getWidth() / mDecoder.getWidth();
+        final float scaleY = (float) preview.getHeight() / mDecoder.getHeight();
+        s.set(src.left * scaleX, src.top * scaleY, src.right * scaleX, src.bottom * scaleY);
+        drawBitmap(canvas, preview, s, dst);
     }
 
     @Override
     public void draw(Canvas canvas, RectF src, RectF dst) {
+        mLastDrawTime = SystemClock.uptimeMillis();
+
+        if (mPreview != null) {
+            drawPreview(canvas, src, dst);
+        }
+
+        if (mFullTiles == null && mDecoder != null) {
+            // Tiles might be released for memory
+            ensureFullTiles();
+        }
         if (mFullTiles == null) {
-            // If mFullTiles is null, means first decode step
-            // is not done. Wait for it.
+            // If mFullTiles is null, means window size
+            // is not set. Wait for it.
             return;
         }
 
-        int sample = calculateSample((int) (src.width() / dst.width()),
-                (int) (src.height() / dst.height()));
-        // Full sample must be the biggest sample
-        sample = Math.min(mFullSample, sample);
+        final int sample = getSample(src, dst);
         // Update current sample
         mCurrentSample = sample;
+        // Tiles not wanted in this frame are dropped from pending list
+        ++mFrame;
+        mFallbackTileCount = 0;
+        mMissingTileCount = 0;
 
         if (sample == mFullSample) {
-            drawFullTiles(canvas, src, dst, mFullTiles, mFullSample);
-        } else {
-            List<Tile> list = mTilesMap.get(sample);
-            if (list == null) {
-                list = genTileList(sample);
-                mTilesMap.put(sample, list);
+            setVisibleRange(0, null);
+            for (final Tile t : mFullTiles) {
+                if (t.bitmap == null) {
+                    ++mMissingTileCount;
+                }
             }
-            drawMapTiles(canvas, src, dst, list, sample);
+            drawTiles(canvas, src, dst, mFullTiles, mFullSample);
+        } else {
+            drawMapTiles(canvas, src, dst, getTileGrid(sample), sample);
+        }
+
+        // Keep loading the tiles for animator target
+        if (!mTargetRect.isEmpty()) {
+            requestTargetTiles();
         }
 
-        // Always gc after draw tiles
-        gc();
+        // Always trim tile cache after draw tiles
+        trimTileCache(getMaxTileCacheSize(), true);
+        updateMemoryUsage();
+        scheduleTiles();
     }
 
     @Override
     public void recycle() {
+        MemoryTrimmer.remove(this);
+        if (mImageKey == null) {
+            // No one else could use them, drop the compressing ones too
+            for (CompressTileTask task : mCompressTileTaskList) {
+                task.cancel(false);
+            }
+            CompressedTileCache.getInstance().removeAll(mLocalKey);
+        }
+        mCompressTileTaskList.clear();
+        TileMemoryBudget.getInstance().remove(this);
+        releasePreview();
         mPaint = null;
+        mAlphaPaint = null;
+        mBlackPaint = null;
 
         // Recycle all tiles
         if (mFullTiles != null) {
-            recycleTiles(mFullTiles);
+            releaseTiles(mFullTiles);
             mFullTiles = null;
         }
         for (int i = 0, len = mTilesMap.size(); i < len; i++) {
-            recycleTiles(mTilesMap.valueAt(i));
+            releaseTiles(mTilesMap.valueAt(i));
         }
         mTilesMap.clear();
+        mTileCache.clear();
+        mTileCacheSize = 0;
+        mVisibleRange.setEmpty();
+        mVisibleSample = 0;
 
-        boolean recycled = false;
+        // Tasks might run in parallel, the decoder
+        // can only be recycled after all of them are done
+        final DecoderRecycler recycler = new DecoderRecycler(mDecoder);
 
         // Cancel all tasks
-        if (mFullTileTask != null) {
-            recycled = true;
-            mFullTileTask.recycle();
-            mFullTileTask.cancel(false);
+        for (FullTileTask task : mFullTileTaskList) {
+            task.recycle(recycler);
+            task.cancel(false);
         }
+        mFullTileTaskList.clear();
         for (LoadTileTask task : mLoadTileTaskList) {
-            recycled = true;
-            task.recycle();
+            task.recycle(recycler);
             task.cancel(false);
         }
         mLoadTileTaskList.clear();
+        mPendingTiles.clear();
 
-        if (!recycled) {
-            mDecoder.recycle();
-        }
+        recycler.release();
         mDecoder = null;
     }
 
 
+    // Recycle the RegionDecoder when all the tasks using it are done.
+    // Only touched in UI thread.
+    private static class DecoderRecycler {
+
+        private final RegionDecoder mDecoder;
+        // Start from 1, the reference of TiledBitmapSource
+        private int mReference = 1;
+
+        public DecoderRecycler(RegionDecoder decoder) {
+            mDecoder = decoder;
+        }
+
+        public void obtain() {
+            ++mReference;
+        }
+
+        public void release() {
+            if (--mReference == 0) {
+                mDecoder.recycle();
+            }
+        }
+    }
+
     // The BaseTask for all the other tasks.
     // Handle mImageSource recycle.
     private static abstract class BaseTask<Params, Progress, Result>
             extends AsyncTask<Params, Progress, Result> {
 
         protected final RegionDecoder mDecoder;
-        private boolean mRecycle;
+        protected final BitmapPool mBitmapPool;
+        private final DiskTileCache mDiskTileCache;
+        private final String mImageKey;
+        private final String mCompressedKey;
+        private DecoderRecycler mRecycler;
+        // Total nanoseconds and bitmap pixels of decode calls, -1 for no call
+        private volatile long mDecodeTime = -1;
+        private volatile int mDecodePixels;
+
+        public BaseTask(TiledBitmapSource source) {
+            mDecoder = source.mDecoder;
+            mBitmapPool = source.mBitmapPool;
+            mDiskTileCache = source.mImageKey != null ? source.mDiskTileCache : null;
+            mImageKey = source.mImageKey;
+            mCompressedKey = source.getCompressedKey();
+        }
 
-        public BaseTask(RegionDecoder decoder) {
-            mDecoder = decoder;
+        // Restore the tile from CompressedTileCache or read it from disk cache
+        // if possible, or decode it and write it to disk cache
+        protected Bitmap loadTile(Rect rect, int sample) {
+            Bitmap bitmap = getCachedTile(rect, sample);
+            if (bitmap == null) {
+                bitmap = decodeRegion(rect, sample);
+                if (bitmap != null) {
+                    putDiskTile(rect, sample, bitmap);
+                }
+            }
+            return bitmap;
+        }
+
+        // Restore the tile from CompressedTileCache or disk cache, null if missed
+        protected Bitmap getCachedTile(Rect rect, int sample) {
+            final Bitmap compressed = CompressedTileCache.getInstance()
+                    .get(mCompressedKey, sample, rect, mBitmapPool);
+            if (compressed != null) {
+                return compressed;
+            }
+            final DiskTileCache diskCache = mDiskTileCache;
+            if (diskCache != null) {
+                return diskCache.get(mImageKey, sample, rect, mBitmapPool);
+            } else {
+                return null;
+            }
+        }
+
+        // Write the tile to disk cache if there is one
+        protected void putDiskTile(Rect rect, int sample, Bitmap bitmap) {
+            final DiskTileCache diskCache = mDiskTileCache;
+            if (diskCache != null) {
+                diskCache.put(mImageKey, sample, rect, bitmap);
+            }
+        }
+
+        // Decode the region, add the decode call to the measurement
+        protected Bitmap decodeRegion(Rect rect, int sample) {
+            final long start = System.nanoTime();
+            final Bitmap bitmap = mDecoder.decodeRegion(rect, sample);
+            if (bitmap != null) {
+                final long time = System.nanoTime() - start;
+                mDecodePixels += bitmap.getWidth() * bitmap.getHeight();
+                mDecodeTime = mDecodeTime < 0 ? time : mDecodeTime + time;
+            }
+            return bitmap;
+        }
+
+        public long getDecodeTime() {
+            return mDecodeTime;
+        }
+
+        public int getDecodePixels() {
+            return mDecodePixels;
         }
 
         // Call it before {@link #cancel(boolean)} if you want to
         // recycle the ImageSource.
-        public void recycle() {
-            mRecycle = true;
+        public void recycle(DecoderRecycler recycler) {
+            mRecycler = recycler;
+            recycler.obtain();
         }
 
         @Override
         protected void onCancelled(Result result) {
-            if (mRecycle) {
-                mDecoder.recycle();
+            if (mRecycler != null) {
+                mRecycler.release();
             }
         }
     }
 
-    private static class FullTileTask extends BaseTask<Void, Void, List<Tile>> {
+    // Compress the evicted tile to CompressedTileCache, then release the bitmap
+    private static class CompressTileTask extends AsyncTask<Void, Void, Void> {
 
         private final WeakReference<TiledBitmapSource> mSource;
-        private final RegionDecoder mDecoder;
-        private final int mFullSample;
-        private final int mMaxTileSize;
+        private final String mCompressedKey;
+        private final String mImageKey;
+        private final BitmapPool mBitmapPool;
+        private final int mSample;
+        private final Rect mRect;
+        private final Bitmap mBitmap;
 
-        public FullTileTask(TiledBitmapSource source) {
-            super(source.mDecoder);
+        public CompressTileTask(TiledBitmapSource source, Tile tile, Bitmap bitmap) {
             mSource = new WeakReference<>(source);
-            mDecoder = source.mDecoder;
-            mFullSample = source.mFullSample;
-            mMaxTileSize = source.mMaxTileSize;
+            mCompressedKey = source.getCompressedKey();
+            mImageKey = source.mImageKey;
+            mBitmapPool = source.mBitmapPool;
+            mSample = tile.sample;
+            mRect = tile.rect;
+            mBitmap = bitmap;
         }
 
         @Override
-        protected List<Tile> doInBackground(Void... params) {
-            final int width = mDecoder.getWidth();
-            final int height = mDecoder.getHeight();
-            final int step = mMaxTileSize * mFullSample;
-            final List<Tile> list = new ArrayList<>(ceilDiv(width, step) * ceilDiv(height, step));
-
-            for (int y = 0; y < height; y += step) {
-                for (int x = 0; x < width; x += step) {
-                    if (isCancelled()) {
-                        break;
-                    }
-                    final int w = Math.min(step, width - x);
-                    final int h = Math.min(step, height - y);
-                    final Rect rect = new Rect(x, y, x + w, y + h);
-                    final Bitmap bitmap = mDecoder.decodeRegion(rect, mFullSample);
-                    final Tile tile = new Tile();
-                    tile.rect = rect;
-                    tile.bitmap = bitmap;
-                    if (bitmap == null) {
-                        Log.w(LOG_TAG, "Failed to decode full tiles");
-                        tile.failed = true;
-                    }
-                    list.add(tile);
-                }
+        protected Void doInBackground(Void... params) {
+            if (!isCancelled()) {
+                CompressedTileCache.getInstance().put(mCompressedKey, mSample, mRect, mBitmap);
             }
+            return null;
+        }
 
-            return list;
+        // Keep the bitmap in SharedTileCache, or put it to the pool
+        private void releaseTile() {
+            if (mImageKey != null) {
+                SharedTileCache.getInstance().put(mImageKey, mSample, mRect, mBitmap);
+            } else {
+                releaseBitmap(mBitmap, mBitmapPool);
+            }
         }
 
         @Override
-        protected void onPostExecute(List<Tile> tiles) {
+        protected void onPostExecute(Void result) {
+            final TiledBitmapSource source = mSource.get();
+            if (source != null) {
+                source.onCompressTileDone(this);
+            }
+            releaseTile();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            // The source is recycled, it might be put after removeAll()
+            CompressedTileCache.getInstance().remove(mCompressedKey, mSample, mRect);
+            releaseTile();
+        }
+    }
+
+    private static class FullTileTask extends BaseTask<Void, Void, Bitmap> {
+
+        private final WeakReference<TiledBitmapSource> mSource;
+        private final Tile mTile;
+        // Milliseconds to load the tile
+        private long mLoadTime;
+
+        public FullTileTask(TiledBitmapSource source, Tile tile) {
+            super(source);
+            mSource = new WeakReference<>(source);
+            mTile = tile;
+            tile.loading = true;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            if (isCancelled()) {
+                return null;
+            }
+            final long start = SystemClock.uptimeMillis();
+            final Bitmap bitmap = loadTile(mTile.rect, mTile.sample);
+            mLoadTime = SystemClock.uptimeMillis() - start;
+            return bitmap;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
             final TiledBitmapSource source = mSource.get();
             if (source == null) {
                 Log.w(LOG_TAG, "Should call cancel() on FullTileTask");
-                recycleTiles(tiles);
+                if (bitmap != null) {
+                    releaseBitmap(bitmap, mBitmapPool);
+                }
             } else {
                 // Callback
-                source.onFullTileDone(tiles);
+                source.onFullTileDone(this, mTile, bitmap, mLoadTime);
             }
         }
 
         @Override
-        protected void onCancelled(List<Tile> tiles) {
-            super.onCancelled(tiles);
-            recycleTiles(tiles);
+        protected void onCancelled(Bitmap bitmap) {
+            super.onCancelled(bitmap);
+            mTile.loading = false;
+            if (bitmap != null) {
+                releaseBitmap(bitmap, mBitmapPool);
+            }
         }
     }
 
@@ -537,36 +1865,164 @@ public class TiledBitmapSource extends ImageSource {
 
         private final WeakReference<TiledBitmapSource> mSource;
         private final WeakReference<Tile> mTile;
-        private final RegionDecoder mDecoder;
         private final int mSample;
-
-        public LoadTileTask(TiledBitmapSource source, Tile tile, int sample) {
-            super(source.mDecoder);
+        private final boolean mPrefetch;
+        // Finer tiles to make this tile, loaded ones are pinned until the task is done
+        private final Tile[] mFinerTiles;
+        private final Rect[] mFinerRects;
+        private final Bitmap[] mFinerBitmaps;
+        // Milliseconds to load the tile
+        private long mLoadTime;
+
+        // finerTiles are the loaded tiles in finerRects, null for missing ones
+        public LoadTileTask(TiledBitmapSource source, Tile tile, int sample, boolean prefetch,
+                @Nullable Tile[] finerTiles, @Nullable Rect[] finerRects) {
+            super(source);
             mSource = new WeakReference<>(source);
             mTile = new WeakReference<>(tile);
-            mDecoder = source.mDecoder;
             mSample = sample;
+            mPrefetch = prefetch;
             tile.loading = true;
+
+            mFinerTiles = finerTiles;
+            mFinerRects = finerRects;
+            if (finerTiles != null) {
+                final int n = finerTiles.length;
+                mFinerBitmaps = new Bitmap[n];
+                for (int i = 0; i < n; i++) {
+                    final Tile t = finerTiles[i];
+                    if (t != null) {
+                        mFinerBitmaps[i] = t.bitmap;
+                        ++t.pinned;
+                    }
+                }
+            } else {
+                mFinerBitmaps = null;
+            }
+        }
+
+        public boolean isPrefetch() {
+            return mPrefetch;
+        }
+
+        public long getLoadTime() {
+            return mLoadTime;
         }
 
         @Override
         protected Bitmap doInBackground(Void... params) {
             final Tile tile = mTile.get();
-            if (tile != null) {
-                return mDecoder.decodeRegion(tile.rect, mSample);
+            if (tile == null) {
+                return null;
+            }
+            final long start = SystemClock.uptimeMillis();
+            final Bitmap bitmap;
+            if (mFinerTiles != null) {
+                bitmap = scaleDownTile(tile.rect, mSample);
             } else {
+                bitmap = loadTile(tile.rect, mSample);
+            }
+            mLoadTime = SystemClock.uptimeMillis() - start;
+            return bitmap;
+        }
+
+        // Make the tile from finer bitmaps, it's a 2x2 box filter.
+        // Only decode the parts whose finer bitmap is missing.
+        private Bitmap scaleDownTile(Rect rect, int sample) {
+            Bitmap.Config config = null;
+            for (Bitmap b : mFinerBitmaps) {
+                if (b != null && b.getConfig() != null) {
+                    config = b.getConfig();
+                    break;
+                }
+            }
+            if (config == null) {
+                return loadTile(rect, sample);
+            }
+            final Bitmap cached = getCachedTile(rect, sample);
+            if (cached != null) {
+                return cached;
+            }
+
+            final int width = Math.max(1, ImageMath.ceilDiv(rect.width(), sample));
+            final int height = Math.max(1, ImageMath.ceilDiv(rect.height(), sample));
+            Bitmap bitmap = mBitmapPool != null ? mBitmapPool.get(width, height, config) : null;
+            try {
+                if (bitmap == null) {
+                    bitmap = Bitmap.createBitmap(width, height, config);
+                } else {
+                    bitmap.eraseColor(Color.TRANSPARENT);
+                }
+            } catch (OutOfMemoryError e) {
+                Log.w(LOG_TAG, "Out of memory when scaling down tile", e);
                 return null;
             }
+
+            final Canvas canvas = new Canvas(bitmap);
+            final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            final Matrix matrix = new Matrix();
+            final RectF s = new RectF();
+            final RectF d = new RectF();
+            for (int i = 0, n = mFinerRects.length; i < n; i++) {
+                if (isCancelled()) {
+                    releaseBitmap(bitmap, mBitmapPool);
+                    return null;
+                }
+                final Rect r = mFinerRects[i];
+                Bitmap b = mFinerBitmaps[i];
+                final boolean decoded = b == null;
+                if (decoded) {
+                    // Only the combined tile goes to disk cache
+                    b = decodeRegion(r, sample);
+                    if (b == null) {
+                        releaseBitmap(bitmap, mBitmapPool);
+                        return null;
+                    }
+                }
+                s.set(0, 0, b.getWidth(), b.getHeight());
+                d.set(r);
+                d.offset(-rect.left, -rect.top);
+                ImageMath.mapRect(d, sample);
+                matrix.setRectToRect(s, d, Matrix.ScaleToFit.FILL);
+                canvas.drawBitmap(b, matrix, paint);
+                if (decoded) {
+                    releaseBitmap(b, mBitmapPool);
+                }
+            }
+            putDiskTile(rect, sample, bitmap);
+            return bitmap;
+        }
+
+        // Unpin finer tiles, release the bitmaps which are dropped by tiles
+        private void releaseFinerTiles(TiledBitmapSource source) {
+            if (mFinerTiles == null) {
+                return;
+            }
+            for (int i = 0, n = mFinerTiles.length; i < n; i++) {
+                final Tile t = mFinerTiles[i];
+                if (t == null) {
+                    continue;
+                }
+                final Bitmap b = mFinerBitmaps[i];
+                --t.pinned;
+                if (b != null && t.bitmap != b) {
+                    releaseBitmap(b, mBitmapPool);
+                }
+                if (source != null) {
+                    source.removeTileIfEmpty(t);
+                }
+            }
         }
 
         @Override
         protected void onPostExecute(Bitmap bitmap) {
             final TiledBitmapSource source = mSource.get();
+            releaseFinerTiles(source);
             final Tile tile = mTile.get();
             if (source == null || tile == null) {
                 Log.w(LOG_TAG, "Should call cancel() on LoadTileTask");
                 if (bitmap != null) {
-                    bitmap.recycle();
+                    releaseBitmap(bitmap, mBitmapPool);
                 }
             } else {
                 tile.loading = false;
@@ -576,29 +2032,27 @@ public class TiledBitmapSource extends ImageSource {
                     tile.failed = true;
                 }
                 // Callback
-                source.onLoadTileDone(this, mSample);
+                source.onLoadTileDone(this, tile, mSample);
             }
         }
 
         @Override
         protected void onCancelled(Bitmap bitmap) {
             super.onCancelled(bitmap);
+            final TiledBitmapSource source = mSource.get();
+            releaseFinerTiles(source);
+            final Tile tile = mTile.get();
+            if (tile != null) {
+                // Could be loaded again
+                tile.loading = false;
+                if (source != null) {
+                    source.removeTileIfEmpty(tile);
+                }
+            }
             if (bitmap != null) {
-                bitmap.recycle();
+                releaseBitmap(bitmap, mBitmapPool);
             }
         }
     }
 
-    private static int ceilDiv(int a, int b) {
-        return (a + b - 1) / b;
-    }
-
-    private static int prevPow2(int n) {
-        n |= n >> 1;
-        n |= n >> 2;
-        n |= n >> 4;
-        n |= n >> 8;
-        n |= n >> 16;
-        return n - (n >> 1);
-    }
 }
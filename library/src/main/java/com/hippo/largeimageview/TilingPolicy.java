@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.largeimageview;
+
+/*
+ * Created by Hippo on 10/17/2016.
+ */
+
+import android.support.annotation.NonNull;
+
+/**
+ * Decides the width and the height of the tiles of {@link TiledBitmapSource}
+ * for each sample.
+ * <p>
+ * Larger tiles need fewer decode calls, and every call of
+ * {@code BitmapRegionDecoder} has a fixed overhead.
+ * Smaller tiles are shown sooner and keep less memory out of window.
+ *
+ * @see TiledBitmapSource#setTilingPolicy(TilingPolicy)
+ * @see DefaultTilingPolicy
+ */
+public interface TilingPolicy {
+
+    /**
+     * Get the size of the tiles of the sample, in bitmap pixels.
+     * A tile covers {@code size[0] * sample} x {@code size[1] * sample} image pixels,
+     * rounded up to multiples of {@link RegionDecoder#getPreferredAlignment()}.
+     * <p>
+     * Keep the sizes of two samples powers of 2 of each other,
+     * then coarser tiles could be made from finer tiles.
+     * Called in UI thread when the tiles of the sample are created,
+     * they keep the size until tiles are reset.
+     *
+     * @param size put the width to {@code size[0]}, the height to {@code size[1]}
+     */
+    void getTileSize(@NonNull Params params, int sample, @NonNull int[] size);
+
+    /**
+     * The image, the device and the decode costs measured so far.
+     */
+    final class Params {
+
+        int mImageWidth;
+        int mImageHeight;
+        int mWindowWidth;
+        int mWindowHeight;
+        int mMaxBitmapSize;
+        int mMaxMemory;
+        int mBytesPerPixel;
+        long mDecodeOverhead = -1;
+        float mDecodeCostPerPixel = -1.0f;
+
+        Params() {}
+
+        public int getImageWidth() {
+            return mImageWidth;
+        }
+
+        public int getImageHeight() {
+            return mImageHeight;
+        }
+
+        public int getWindowWidth() {
+            return mWindowWidth;
+        }
+
+        public int getWindowHeight() {
+            return mWindowHeight;
+        }
+
+        /**
+         * Return the max width and height of a {@code Bitmap} which can be drawn.
+         */
+        public int getMaxBitmapSize() {
+            return mMaxBitmapSize;
+        }
+
+        /**
+         * Return the max bytes of tile bitmaps in memory.
+         *
+         * @see TiledBitmapSource#getMaxTileCacheSize()
+         */
+        public int getMaxMemory() {
+            return mMaxMemory;
+        }
+
+        public int getBytesPerPixel() {
+            return mBytesPerPixel;
+        }
+
+        /**
+         * Return the fixed nanoseconds of a decode call,
+         * -1 if not enough decode calls are measured.
+         */
+        public long getDecodeOverhead() {
+            return mDecodeOverhead;
+        }
+
+        /**
+         * Return the nanoseconds to decode a bitmap pixel,
+         * -1 if not enough decode calls are measured.
+         */
+        public float getDecodeCostPerPixel() {
+            return mDecodeCostPerPixel;
+        }
+    }
+}
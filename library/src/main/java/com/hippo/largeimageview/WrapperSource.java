@@ -37,18 +37,26 @@ public abstract class WrapperSource extends ImageSource implements ImageSource.C
     /**
      * Set base ImageSource.
      * Only call it once!
+     * If this WrapperSource is ready before, like showing a preview,
+     * the base must have the same size.
      */
     protected void setImageSource(@NonNull ImageSource base) {
         if (mBase != null) {
             throw new IllegalStateException("Can't set ImageSource twice");
         }
+        final boolean ready = isReady();
         mBase = base;
         base.setCallback(this);
         base.setVisible(isVisible());
         base.setWindowSize(mWindowWidth, mWindowHeight);
         base.setMaxBitmapSize(mMaxBitmapSize);
-        // Ready
-        callSelfReady();
+        if (ready) {
+            // The size is the same, keep the position
+            invalidateSelf();
+        } else {
+            // Ready
+            callSelfReady();
+        }
     }
 
     @Override
@@ -117,6 +125,13 @@ public abstract class WrapperSource extends ImageSource implements ImageSource.C
         }
     }
 
+    @Override
+    public void onAnimatorTarget(RectF src, RectF dst) {
+        if (mBase != null) {
+            mBase.onAnimatorTarget(src, dst);
+        }
+    }
+
     @Override
     public void onTouchStart() {
         if (mBase != null) {
@@ -131,6 +146,13 @@ public abstract class WrapperSource extends ImageSource implements ImageSource.C
         }
     }
 
+    @Override
+    public void onScrollVelocity(float velocityX, float velocityY) {
+        if (mBase != null) {
+            mBase.onScrollVelocity(velocityX, velocityY);
+        }
+    }
+
     @Override
     public int getWidth() {
         if (mBase != null) {
@@ -156,6 +178,15 @@ public abstract class WrapperSource extends ImageSource implements ImageSource.C
         }
     }
 
+    @Override
+    public long getMemoryUsage() {
+        if (mBase != null) {
+            return mBase.getMemoryUsage();
+        } else {
+            return 0;
+        }
+    }
+
     @Override
     public void recycle() {
         if (mBase != null) {
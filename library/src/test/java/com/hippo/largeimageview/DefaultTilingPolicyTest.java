@@ -0,0 +1,62 @@
+package com.hippo.largeimageview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultTilingPolicyTest {
+
+    private static TilingPolicy.Params params(int width, int height) {
+        final TilingPolicy.Params params = new TilingPolicy.Params();
+        params.mImageWidth = width;
+        params.mImageHeight = height;
+        params.mWindowWidth = 1080;
+        params.mWindowHeight = 1920;
+        params.mMaxBitmapSize = 2048;
+        params.mMaxMemory = 1080 * 1920 * 4 * 3;
+        params.mBytesPerPixel = 4;
+        return params;
+    }
+
+    @Test
+    public void testSquare() {
+        final int[] size = new int[2];
+        new DefaultTilingPolicy().getTileSize(params(12000, 8000), 1, size);
+        assertEquals(512, size[0]);
+        assertEquals(512, size[1]);
+    }
+
+    @Test
+    public void testStrip() {
+        final int[] size = new int[2];
+        final DefaultTilingPolicy policy = new DefaultTilingPolicy();
+        // Tall strip, a tile covers the whole width
+        policy.getTileSize(params(800, 40000), 1, size);
+        assertEquals(800, size[0]);
+        assertEquals(256, size[1]);
+
+        // Coarse sample, a tile covers the whole sample
+        policy.getTileSize(params(800, 600), 2, size);
+        assertEquals(400, size[0]);
+        assertEquals(300, size[1]);
+    }
+
+    @Test
+    public void testOverhead() {
+        final int[] size = new int[2];
+        final TilingPolicy.Params params = params(12000, 8000);
+        // 10ms for each call, 10ns for each pixel
+        params.mDecodeOverhead = 10000000;
+        params.mDecodeCostPerPixel = 10.0f;
+        new DefaultTilingPolicy().getTileSize(params, 1, size);
+        assertTrue(size[0] * size[1] > 512 * 512);
+        assertTrue(size[0] <= 1024 && size[1] <= 1024);
+
+        // Not enough memory for large tiles
+        params.mMaxMemory = 512 * 512 * 4;
+        new DefaultTilingPolicy().getTileSize(params, 1, size);
+        assertEquals(256, size[0]);
+        assertEquals(128, size[1]);
+    }
+}
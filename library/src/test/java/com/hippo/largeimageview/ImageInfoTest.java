@@ -0,0 +1,163 @@
+package com.hippo.largeimageview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImageInfoTest {
+
+    private static ImageInfo decode(int... bytes) throws IOException {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return ImageInfo.decode(new ByteArrayInputStream(data));
+    }
+
+    // The first component is 2x2 sampled
+    private static int[] jpeg(int components) {
+        final int[] head = {
+                0xff, 0xd8,
+                // APP0, 4 bytes data
+                0xff, 0xe0, 0x00, 0x06, 'J', 'F', 'I', 'F',
+                // SOF0, precision, height, width, components
+                0xff, 0xc0, 0x00, 8 + 3 * components, 0x08, 0x01, 0x00, 0x01, 0x00, components,
+        };
+        final int[] result = Arrays.copyOf(head, head.length + 3 * components);
+        for (int i = 0; i < components; i++) {
+            result[head.length + 3 * i] = i + 1;
+            result[head.length + 3 * i + 1] = i == 0 ? 0x22 : 0x11;
+        }
+        return result;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        final int[] result = new int[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int[] png(int colorType, char... chunk) {
+        final int[] head = {
+                0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a,
+                // IHDR
+                0x00, 0x00, 0x00, 0x0d, 'I', 'H', 'D', 'R',
+                0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x01, 0x00, 0x08, colorType, 0x00, 0x00, 0x00,
+                // CRC
+                0x00, 0x00, 0x00, 0x00,
+                // Next chunk, no data
+                0x00, 0x00, 0x00, 0x00,
+        };
+        final int[] result = new int[head.length + chunk.length];
+        System.arraycopy(head, 0, result, 0, head.length);
+        for (int i = 0; i < chunk.length; i++) {
+            result[head.length + i] = chunk[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        ImageInfo info = decode(jpeg(1));
+        assertTrue(info.isKnown());
+        assertFalse(info.hasAlpha());
+        assertTrue(info.isGrayscale());
+        assertEquals(256, info.getWidth());
+        assertEquals(256, info.getHeight());
+        assertEquals(8, info.getMcuWidth());
+        assertEquals(8, info.getMcuHeight());
+
+        info = decode(jpeg(3));
+        assertTrue(info.isKnown());
+        assertFalse(info.hasAlpha());
+        assertFalse(info.isGrayscale());
+        assertEquals(16, info.getMcuWidth());
+        assertEquals(16, info.getMcuHeight());
+    }
+
+    @Test
+    public void testJpegThumbnail() throws IOException {
+        final int[] exif = {
+                0xff, 0xd8,
+                // APP1, 54 bytes data
+                0xff, 0xe1, 0x00, 0x38, 'E', 'x', 'i', 'f', 0x00, 0x00,
+                // TIFF header, little endian, IFD0 at 8
+                'I', 'I', 0x2a, 0x00, 0x08, 0x00, 0x00, 0x00,
+                // IFD0, no entry, IFD1 at 14
+                0x00, 0x00, 0x0e, 0x00, 0x00, 0x00,
+                // IFD1, thumbnail at 44, 4 bytes
+                0x02, 0x00,
+                0x01, 0x02, 0x04, 0x00, 0x01, 0x00, 0x00, 0x00, 0x2c, 0x00, 0x00, 0x00,
+                0x02, 0x02, 0x04, 0x00, 0x01, 0x00, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00,
+                // Thumbnail
+                0xff, 0xd8, 0xff, 0xd9,
+        };
+        final int[] rest = jpeg(3);
+        ImageInfo info = decode(concat(exif, Arrays.copyOfRange(rest, 2, rest.length)));
+        assertTrue(info.isKnown());
+        assertFalse(info.isGrayscale());
+        assertArrayEquals(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9},
+                info.getThumbnail());
+
+        info = decode(jpeg(3));
+        assertNull(info.getThumbnail());
+    }
+
+    @Test
+    public void testPng() throws IOException {
+        ImageInfo info = decode(png(0, 'I', 'D', 'A', 'T'));
+        assertTrue(info.isKnown());
+        assertFalse(info.hasAlpha());
+        assertTrue(info.isGrayscale());
+        assertEquals(256, info.getWidth());
+        assertEquals(256, info.getHeight());
+
+        info = decode(png(2, 't', 'R', 'N', 'S'));
+        assertTrue(info.isKnown());
+        assertTrue(info.hasAlpha());
+        assertFalse(info.isGrayscale());
+
+        info = decode(png(6));
+        assertTrue(info.isKnown());
+        assertTrue(info.hasAlpha());
+    }
+
+    @Test
+    public void testWebp() throws IOException {
+        ImageInfo info = decode('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', 'X', 0x0a, 0x00, 0x00, 0x00, 0x10, 0, 0, 0, 0);
+        assertTrue(info.isKnown());
+        assertTrue(info.hasAlpha());
+
+        info = decode('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', ' ', 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        assertTrue(info.isKnown());
+        assertFalse(info.hasAlpha());
+        assertEquals(0, info.getWidth());
+
+        // 100 x 50
+        info = decode('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', 'L', 0, 0, 0, 0, 0x2f, 0x63, 0x40, 0x0c, 0x00);
+        assertTrue(info.isKnown());
+        assertFalse(info.hasAlpha());
+        assertEquals(100, info.getWidth());
+        assertEquals(50, info.getHeight());
+    }
+
+    @Test
+    public void testUnknown() throws IOException {
+        assertSame(ImageInfo.UNKNOWN, decode('G', 'I', 'F', '8', '9', 'a', 0, 0, 0, 0, 0, 0));
+        assertSame(ImageInfo.UNKNOWN, decode(0xff, 0xd8, 0xff));
+    }
+}
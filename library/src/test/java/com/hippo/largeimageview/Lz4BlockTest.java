@@ -0,0 +1,68 @@
+package com.hippo.largeimageview;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lz4BlockTest {
+
+    private static byte[] roundTrip(byte[] data) {
+        final byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length) + 3];
+        final int length = Lz4Block.compress(data, 0, data.length, compressed, 3);
+        assertTrue(length <= Lz4Block.maxCompressedLength(data.length));
+        final byte[] result = new byte[data.length];
+        assertEquals(data.length, Lz4Block.decompress(compressed, 3, length, result, 0, result.length));
+        assertArrayEquals(data, result);
+        return compressed;
+    }
+
+    private static int compressedLength(byte[] data) {
+        final byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length)];
+        return Lz4Block.compress(data, 0, data.length, compressed, 0);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final Random random = new Random(7);
+        for (int length : new int[] {0, 1, 12, 13, 100, 4096, 300000}) {
+            // Incompressible
+            final byte[] noise = new byte[length];
+            random.nextBytes(noise);
+            roundTrip(noise);
+
+            // Flat colors with a bit noise, like pixels of a comic page
+            final byte[] pixels = new byte[length];
+            for (int i = 0; i < length; i++) {
+                pixels[i] = (byte) (random.nextInt(64) == 0 ? random.nextInt() : (i / 4096) * 3 + (i & 3));
+            }
+            roundTrip(pixels);
+        }
+    }
+
+    @Test
+    public void testRatio() {
+        // ARGB pixels of a solid color
+        final byte[] solid = new byte[256 * 256 * 4];
+        for (int i = 0; i < solid.length; i += 4) {
+            solid[i] = (byte) 0x12;
+            solid[i + 1] = (byte) 0x34;
+            solid[i + 2] = (byte) 0x56;
+            solid[i + 3] = (byte) 0xff;
+        }
+        roundTrip(solid);
+        assertTrue(compressedLength(solid) < solid.length / 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() {
+        final byte[] data = new byte[1000];
+        final byte[] compressed = new byte[Lz4Block.maxCompressedLength(data.length)];
+        final int length = Lz4Block.compress(data, 0, data.length, compressed, 0);
+        // Output is too small
+        Lz4Block.decompress(compressed, 0, length, new byte[999], 0, 999);
+    }
+}